@@ -0,0 +1,71 @@
+package dev.figboot.cuberender.bench;
+
+import dev.figboot.cuberender.math.Matrix4f;
+import dev.figboot.cuberender.math.Vector4f;
+import dev.figboot.cuberender.state.Mesh;
+import dev.figboot.cuberender.state.Texture;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+
+final class BenchmarkResources {
+    private BenchmarkResources() { }
+
+    static BufferedImage loadImage(String name) {
+        try (InputStream is = BenchmarkResources.class.getResourceAsStream("/" + name)) {
+            if (is == null) {
+                throw new IllegalArgumentException("no such resource: " + name);
+            }
+
+            return ImageIO.read(is);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    static byte[] loadBytes(String name) {
+        try (InputStream is = BenchmarkResources.class.getResourceAsStream("/" + name)) {
+            if (is == null) {
+                throw new IllegalArgumentException("no such resource: " + name);
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int n; (n = is.read(buf)) > 0; ) {
+                out.write(buf, 0, n);
+            }
+
+            return out.toByteArray();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    // a textured quad covering most of the screen when drawn with an identity transform, lit like PlayerModel's meshes
+    static Mesh texturedQuad(Texture tex) {
+        return new Mesh.Builder()
+                .texture(tex)
+                .vertex(-0.9f, -0.9f, 0)
+                .vertex(-0.9f, 0.9f, 0)
+                .vertex(0.9f, 0.9f, 0)
+                .vertex(0.9f, -0.9f, 0)
+                .normal(0, 0, 1)
+                .normal(0, 0, 1)
+                .texCoord(0, 1)
+                .texCoord(0, 0)
+                .texCoord(1, 0)
+                .texCoord(1, 1)
+                .indices(0, 1, 2, 0, 2, 3)
+                .attach(Mesh.AttachmentType.LIGHT_FACTOR, 1f)
+                .attach(Mesh.AttachmentType.LIGHT_VECTOR, new Vector4f(0, 0, 1, 0))
+                .build();
+    }
+
+    static Matrix4f identity() {
+        return new Matrix4f();
+    }
+}
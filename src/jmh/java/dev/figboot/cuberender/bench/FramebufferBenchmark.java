@@ -0,0 +1,70 @@
+package dev.figboot.cuberender.bench;
+
+import dev.figboot.cuberender.state.BlendMode;
+import dev.figboot.cuberender.state.Framebuffer;
+import dev.figboot.cuberender.state.Mesh;
+import dev.figboot.cuberender.state.Texture;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FramebufferBenchmark {
+    @State(Scope.Thread)
+    public static class ClearState {
+        @Param({"64", "256", "1024"})
+        int size;
+
+        @Param({"false", "true"})
+        boolean lazy;
+
+        Framebuffer fb;
+
+        @Setup
+        public void setup() {
+            fb = new Framebuffer(size, size);
+            fb.setLazyClear(lazy);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class DrawState {
+        @Param({"64", "256", "1024"})
+        int size;
+
+        @Param({"DISABLE", "BINARY", "BLEND_OVER"})
+        BlendMode blendMode;
+
+        Framebuffer fb;
+        Mesh mesh;
+
+        @Setup
+        public void setup() {
+            fb = new Framebuffer(size, size);
+            fb.clear(Framebuffer.FB_CLEAR_COLOR | Framebuffer.FB_CLEAR_DEPTH, 0xFF000000);
+
+            // no depth test, so every iteration covers the same pixels
+            fb.setDepthMode(0);
+            fb.setBlendMode(blendMode);
+            fb.setTransform(BenchmarkResources.identity());
+
+            mesh = BenchmarkResources.texturedQuad(new Texture(BenchmarkResources.loadImage("translucent.png")));
+        }
+    }
+
+    @Benchmark
+    public Framebuffer clear(ClearState state) {
+        state.fb.clear(Framebuffer.FB_CLEAR_COLOR | Framebuffer.FB_CLEAR_DEPTH, 0xFF000000);
+        return state.fb;
+    }
+
+    @Benchmark
+    public Framebuffer drawMesh(DrawState state) {
+        state.fb.drawMesh(state.mesh);
+        return state.fb;
+    }
+}
@@ -0,0 +1,43 @@
+package dev.figboot.cuberender.bench;
+
+import dev.figboot.cuberender.math.Matrix4f;
+import dev.figboot.cuberender.math.Vector4f;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MatrixBenchmark {
+    private Matrix4f left, right;
+    private final Matrix4f target = new Matrix4f();
+
+    private Vector4f vec;
+    private final Vector4f vecTarget = new Vector4f();
+
+    @Setup
+    public void setup() {
+        left = Matrix4f.scale(0.75f).times(Matrix4f.rotateX(0.3f)).times(Matrix4f.rotateY(0.7f));
+        right = Matrix4f.translate(-6/16f, -6/16f, 0).times(Matrix4f.rotateX(0.5f));
+        vec = new Vector4f(0.25f, -0.5f, 0.125f);
+    }
+
+    @Benchmark
+    public Matrix4f times() {
+        return left.times(right, target);
+    }
+
+    @Benchmark
+    public Vector4f transform() {
+        return left.transform(vec, vecTarget);
+    }
+
+    @Benchmark
+    public Vector4f transformAllocating() {
+        return left.transform(vec);
+    }
+}
@@ -0,0 +1,80 @@
+package dev.figboot.cuberender.bench;
+
+import dev.figboot.cuberender.api.PlayerModel;
+import dev.figboot.cuberender.state.AntiAliasMode;
+import dev.figboot.cuberender.state.DepthFormat;
+import dev.figboot.cuberender.state.Framebuffer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PlayerModelBenchmark {
+    @Param({"64", "256", "1024"})
+    int height;
+
+    @Param({"FRONT", "ANGLED", "WALKING"})
+    Pose pose;
+
+    @Param({"skin3.png", "translucent.png"})
+    String skin;
+
+    @Param({"NONE", "MSAA_4X", "SSAA_2X2"})
+    AntiAliasMode antiAlias;
+
+    @Param({"FLOAT32", "FIXED16"})
+    DepthFormat depthFormat;
+
+    private Framebuffer fb;
+    private PlayerModel model;
+
+    @Setup
+    public void setup() {
+        fb = new Framebuffer(height / 2, height, antiAlias, depthFormat);
+        model = new PlayerModel(BenchmarkResources.loadImage(skin), BenchmarkResources.loadImage("cape.png"));
+
+        // same aspect correction the test window does
+        model.setWorldScale(0.75f / 0.5f, 0.75f, 0.75f);
+        pose.apply(model);
+        model.updateTransforms();
+    }
+
+    @Benchmark
+    public Object render() {
+        fb.clear(Framebuffer.FB_CLEAR_COLOR | Framebuffer.FB_CLEAR_DEPTH, 0);
+        model.render(fb);
+
+        // includes the resolve of the anti-aliased modes
+        return fb.getColor();
+    }
+
+    public enum Pose {
+        FRONT {
+            @Override
+            void apply(PlayerModel model) { }
+        },
+        ANGLED {
+            @Override
+            void apply(PlayerModel model) {
+                model.setWorldRotY((float)Math.toRadians(30));
+                model.setWorldRotX((float)Math.toRadians(-15));
+            }
+        },
+        WALKING {
+            @Override
+            void apply(PlayerModel model) {
+                model.setWorldRotY((float)Math.toRadians(150));
+                model.setWalkAngle((float)Math.toRadians(35));
+                model.setCapeAngle((float)Math.toRadians(20));
+                model.setHeadPitch((float)Math.toRadians(10));
+            }
+        };
+
+        abstract void apply(PlayerModel model);
+    }
+}
@@ -0,0 +1,41 @@
+package dev.figboot.cuberender.bench;
+
+import dev.figboot.cuberender.api.PngDecoder;
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PngDecoderBenchmark {
+    @Param({"skin3.png", "skin2.png", "cape.png"})
+    String image;
+
+    private byte[] data;
+    private final int[] target = new int[64 * 64];
+
+    @Setup
+    public void setup() {
+        data = BenchmarkResources.loadBytes(image);
+    }
+
+    @Benchmark
+    public int[] pngDecoder() throws IOException {
+        return PngDecoder.decode(data, target).getPixels();
+    }
+
+    // what decoding cost before: ImageIO, then getRGB to get at the pixels
+    @Benchmark
+    public int[] imageIO() throws IOException {
+        BufferedImage img = ImageIO.read(new ByteArrayInputStream(data));
+        return img.getRGB(0, 0, img.getWidth(), img.getHeight(), target, 0, img.getWidth());
+    }
+}
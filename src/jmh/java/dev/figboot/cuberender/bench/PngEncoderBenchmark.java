@@ -0,0 +1,60 @@
+package dev.figboot.cuberender.bench;
+
+import dev.figboot.cuberender.api.PlayerModel;
+import dev.figboot.cuberender.api.PngEncoder;
+import dev.figboot.cuberender.state.Framebuffer;
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PngEncoderBenchmark {
+    @Param({"128", "512"})
+    int height;
+
+    @Param({"UP", "ADAPTIVE"})
+    PngEncoder.Filter filter;
+
+    @Param({"1", "6"})
+    int level;
+
+    private Framebuffer fb;
+    private PngEncoder encoder;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    @Setup
+    public void setup() {
+        fb = new Framebuffer(height / 2, height);
+        encoder = new PngEncoder.Builder().filter(filter).compressionLevel(level).build();
+
+        PlayerModel model = new PlayerModel(BenchmarkResources.loadImage("skin3.png"), BenchmarkResources.loadImage("cape.png"));
+        model.setWorldScale(0.75f / 0.5f, 0.75f, 0.75f);
+        model.setWorldRotY((float)Math.toRadians(30));
+        model.updateTransforms();
+
+        fb.clear(Framebuffer.FB_CLEAR_COLOR | Framebuffer.FB_CLEAR_DEPTH, 0);
+        model.render(fb);
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        out.reset();
+        encoder.encode(fb, out);
+        return out.size();
+    }
+
+    @Benchmark
+    public int imageIO() throws IOException {
+        out.reset();
+        ImageIO.write(fb.getColor(), "png", out);
+        return out.size();
+    }
+}
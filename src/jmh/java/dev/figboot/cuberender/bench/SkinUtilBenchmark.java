@@ -0,0 +1,36 @@
+package dev.figboot.cuberender.bench;
+
+import dev.figboot.cuberender.api.SkinUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SkinUtilBenchmark {
+    private BufferedImage legacySkin;
+    private final BufferedImage target = new BufferedImage(64, 64, BufferedImage.TYPE_INT_ARGB);
+    private int[] legacyPixels;
+    private final int[] targetPixels = new int[64 * 64];
+
+    @Setup
+    public void setup() {
+        legacySkin = BenchmarkResources.loadImage("skin2.png");
+        legacyPixels = legacySkin.getRGB(0, 0, 64, 32, null, 0, 64);
+    }
+
+    @Benchmark
+    public BufferedImage convertToModernSkin() {
+        return SkinUtil.convertToModernSkin(legacySkin, target);
+    }
+
+    @Benchmark
+    public int[] convertToModernSkinPixels() {
+        return SkinUtil.convertToModernSkin(legacyPixels, targetPixels);
+    }
+}
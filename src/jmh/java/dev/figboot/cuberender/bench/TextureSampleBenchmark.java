@@ -0,0 +1,50 @@
+package dev.figboot.cuberender.bench;
+
+import dev.figboot.cuberender.math.Vector4f;
+import dev.figboot.cuberender.state.BlendMode;
+import dev.figboot.cuberender.state.SpanShader;
+import dev.figboot.cuberender.state.Texture;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TextureSampleBenchmark {
+    private static final int N_SAMPLES = 1024;
+
+    // BLEND_OVER shades premultiplied texels, the others straight ones
+    @Param({"DISABLE", "BLEND_OVER"})
+    BlendMode blendMode;
+
+    private SpanShader mesh;
+    private final float[] attributes = new float[SpanShader.MAX_ATTRIBUTES];
+    private final float[] b0 = new float[N_SAMPLES], b1 = new float[N_SAMPLES], b2 = new float[N_SAMPLES];
+    private final int[] out = new int[N_SAMPLES];
+
+    @Setup
+    public void setup() {
+        mesh = BenchmarkResources.texturedQuad(new Texture(BenchmarkResources.loadImage("skin3.png")));
+        mesh.setup(0, 1, 2, new Vector4f(0, 0, 1, 0), blendMode, attributes);
+
+        Random random = new Random(0);
+        for (int i = 0; i < N_SAMPLES; ++i) {
+            b0[i] = random.nextFloat();
+            b1[i] = random.nextFloat() * (1 - b0[i]);
+            b2[i] = 1 - b0[i] - b1[i];
+        }
+    }
+
+    // shades N_SAMPLES random points inside the first triangle of the quad as one span, as the rasterizer does
+    @Benchmark
+    @OperationsPerInvocation(N_SAMPLES)
+    public int[] shade() {
+        mesh.shade(attributes, b0, b1, b2, out, N_SAMPLES);
+        return out;
+    }
+}
@@ -0,0 +1,290 @@
+package dev.figboot.cuberender.api;
+
+import dev.figboot.cuberender.state.AntiAliasMode;
+import dev.figboot.cuberender.state.Framebuffer;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Renders many player models concurrently on a pool of worker threads and encodes the results as PNG images.
+ * <p>Each worker keeps its own Framebuffers (one per output size) and reuses them between jobs. The number of jobs
+ * that can be queued or running at once is bounded, and {@link BatchRenderer#submit(Job)} blocks while that limit is
+ * reached, so a producer cannot outrun the workers.</p>
+ */
+public class BatchRenderer implements AutoCloseable {
+    // framebuffers are big at large sizes, so don't keep too many around per thread
+    private static final int MAX_CACHED_FRAMEBUFFERS = 4;
+
+    private final WorkerPool pool;
+
+    /**
+     * The number of worker threads.
+     */
+    @Getter private final int threads;
+
+    /**
+     * The encoder used for the rendered images.
+     */
+    @Getter @Setter private volatile PngEncoder pngEncoder = new PngEncoder();
+
+    /**
+     * If non-null, rendered images are looked up in and added to this cache. The keys do not include the encoder
+     * settings, so a cache should not be shared between renderers with different encoders.
+     */
+    @Getter @Setter private volatile RenderCache<byte[]> cache;
+
+    private final ThreadLocal<Map<Long, Framebuffer>> framebuffers = ThreadLocal.withInitial(() -> new LinkedHashMap<Long, Framebuffer>(MAX_CACHED_FRAMEBUFFERS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Framebuffer> eldest) {
+            return size() > MAX_CACHED_FRAMEBUFFERS;
+        }
+    });
+
+    private final LongAdder busyNanos = new LongAdder();
+
+    /**
+     * Creates a BatchRenderer with one worker per available processor and a queue of 4 jobs per worker.
+     */
+    public BatchRenderer() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a BatchRenderer with a queue of 4 jobs per worker.
+     * @param threads the number of worker threads
+     */
+    public BatchRenderer(int threads) {
+        this(threads, threads * 4);
+    }
+
+    /**
+     * Creates a BatchRenderer.
+     * @param threads the number of worker threads
+     * @param queueCapacity the number of jobs that may wait for a worker before {@link BatchRenderer#submit(Job)} blocks
+     */
+    public BatchRenderer(int threads, int queueCapacity) {
+        this.pool = new WorkerPool(threads, queueCapacity, "CubeDisplay batch renderer");
+        this.threads = threads;
+    }
+
+    /**
+     * Queues a job for rendering. This blocks if the queue is full.
+     * @param job the job to render
+     * @return a future which is completed with the encoded PNG image
+     * @throws InterruptedException if the thread is interrupted while waiting for room in the queue
+     */
+    public CompletableFuture<byte[]> submit(Job job) throws InterruptedException {
+        Objects.requireNonNull(job, "job");
+        return pool.submit(() -> render(job));
+    }
+
+    /**
+     * Renders every job in a stream, blocking whenever the queue is full. This method returns once every job has been
+     * queued. The callback is invoked as each job finishes, usually from the worker thread that rendered it. If a job
+     * finishes before it has been handed the callback, the callback is invoked from the thread calling this method
+     * instead, so the callback must be thread-safe either way.
+     * @param jobs the jobs to render
+     * @param callback the callback to deliver each result (or failure) to
+     * @throws InterruptedException if the thread is interrupted while waiting for room in the queue
+     */
+    public void renderAll(Stream<Job> jobs, Callback callback) throws InterruptedException {
+        for (Job job : (Iterable<Job>)jobs::iterator) {
+            submit(job).whenComplete((png, t) -> callback.rendered(job, png, t));
+        }
+    }
+
+    private byte[] render(Job job) throws IOException {
+        long start = System.nanoTime();
+
+        BufferedImage skin = job.skin;
+        if (skin.getHeight() == 32) {
+            skin = SkinUtil.convertToModernSkin(skin, null);
+        }
+
+        PlayerModel model = new PlayerModel(skin, job.cape);
+        model.setNormalModel(!job.slim);
+        if (job.pose != null) {
+            job.pose.accept(model);
+        }
+
+        RenderCache<byte[]> cache = this.cache;
+        RenderCache.Key cacheKey = null;
+
+        if (cache != null) {
+            cacheKey = RenderCache.Key.of(model, job.width, job.height, job.background, job.antiAliasMode);
+
+            byte[] cached = cache.get(cacheKey);
+            if (cached != null) {
+                busyNanos.add(System.nanoTime() - start);
+                return cached;
+            }
+        }
+
+        // 24 bits per dimension is far more than any framebuffer we could allocate
+        long fbKey = ((long)job.antiAliasMode.ordinal() << 48) | ((long)job.width << 24) | job.height;
+        Framebuffer fb = framebuffers.get().computeIfAbsent(fbKey, k -> {
+            Framebuffer newFb = new Framebuffer(job.width, job.height, job.antiAliasMode);
+            newFb.setLazyClear(true); // every render is cleared and then read out once
+            return newFb;
+        });
+        fb.clear(Framebuffer.FB_CLEAR_COLOR | Framebuffer.FB_CLEAR_DEPTH, job.background);
+
+        model.render(fb);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        pngEncoder.encode(fb, out);
+        byte[] png = out.toByteArray();
+
+        if (cache != null) {
+            cache.put(cacheKey, png);
+        }
+
+        busyNanos.add(System.nanoTime() - start);
+        return png;
+    }
+
+    /**
+     * @return the number of jobs that have been rendered successfully
+     */
+    public long getCompletedRenders() {
+        return pool.getCompletedTasks();
+    }
+
+    /**
+     * @return the number of jobs that have failed
+     */
+    public long getFailedRenders() {
+        return pool.getFailedTasks();
+    }
+
+    /**
+     * Calculates the throughput of this renderer as the number of completed renders per second of worker time. Since
+     * each worker is busy on one core while it renders, this is the number of renders per second per core.
+     * @return the number of renders per second per core, or 0 if nothing has been rendered yet
+     */
+    public double getRendersPerSecondPerCore() {
+        long nanos = busyNanos.sum();
+        if (nanos == 0) return 0;
+
+        return pool.getCompletedTasks() / (nanos / 1e9);
+    }
+
+    /**
+     * Stops accepting jobs and waits for queued jobs to finish. If the thread is interrupted while waiting, this returns
+     * early with the thread's interrupt flag set, and the remaining jobs still finish in the background.
+     */
+    @Override
+    public void close() {
+        pool.close();
+    }
+
+    /**
+     * Receives the result of a job rendered by {@link BatchRenderer#renderAll(Stream, Callback)}.
+     */
+    @FunctionalInterface
+    public interface Callback {
+        /**
+         * @param job the job
+         * @param png the encoded PNG image, or {@code null} if rendering failed
+         * @param error the reason rendering failed, or {@code null} if it succeeded
+         */
+        void rendered(Job job, byte[] png, Throwable error);
+    }
+
+    /**
+     * A single render: a skin (and optional cape) posed and drawn at a certain size.
+     */
+    public static class Job {
+        final BufferedImage skin, cape;
+        final boolean slim;
+        final int width, height;
+        final int background;
+        final AntiAliasMode antiAliasMode;
+        final Consumer<PlayerModel> pose;
+
+        private Job(Builder builder) {
+            this.skin = builder.skin;
+            this.cape = builder.cape;
+            this.slim = builder.slim;
+            this.width = builder.width;
+            this.height = builder.height;
+            this.background = builder.background;
+            this.antiAliasMode = builder.antiAliasMode;
+            this.pose = builder.pose;
+        }
+
+        public static class Builder {
+            private final BufferedImage skin;
+            private BufferedImage cape;
+            private boolean slim;
+            private int width, height;
+            private int background;
+            private AntiAliasMode antiAliasMode;
+            private Consumer<PlayerModel> pose;
+
+            /**
+             * @param skin the skin texture (64x32 skins are converted automatically)
+             */
+            public Builder(BufferedImage skin) {
+                this.skin = Objects.requireNonNull(skin, "skin");
+                this.width = 64;
+                this.height = 128;
+                this.background = 0x00000000;
+                this.antiAliasMode = AntiAliasMode.NONE;
+            }
+
+            public Builder cape(BufferedImage cape) {
+                this.cape = cape;
+                return this;
+            }
+
+            public Builder slim(boolean slim) {
+                this.slim = slim;
+                return this;
+            }
+
+            public Builder size(int width, int height) {
+                if (width <= 0 || height <= 0) {
+                    throw new IllegalArgumentException("size must be positive");
+                }
+
+                this.width = width;
+                this.height = height;
+                return this;
+            }
+
+            public Builder background(int argb) {
+                this.background = argb;
+                return this;
+            }
+
+            public Builder antiAliasing(AntiAliasMode mode) {
+                this.antiAliasMode = Objects.requireNonNull(mode, "mode");
+                return this;
+            }
+
+            /**
+             * @param pose sets the angles, scale and overlay flags of the model before it is rendered
+             */
+            public Builder pose(Consumer<PlayerModel> pose) {
+                this.pose = pose;
+                return this;
+            }
+
+            public Job build() {
+                return new Job(this);
+            }
+        }
+    }
+}
@@ -1,17 +1,24 @@
 package dev.figboot.cuberender.api;
 
 import dev.figboot.cuberender.math.Matrix4f;
-import dev.figboot.cuberender.math.Vector2f;
 import dev.figboot.cuberender.math.Vector4f;
 import dev.figboot.cuberender.state.BlendMode;
 import dev.figboot.cuberender.state.Framebuffer;
+import dev.figboot.cuberender.state.Lighting;
 import dev.figboot.cuberender.state.Mesh;
 import dev.figboot.cuberender.state.Texture;
+import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.Setter;
 
 import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Represents a player model that can be rendered onto a Framebuffer.
@@ -74,6 +81,11 @@ public class PlayerModel {
 
     private boolean normalModel;
 
+    /**
+     * How the model is lit, or {@code null} if it is drawn unlit. The default is {@link Lighting#DEFAULT}.
+     */
+    @Getter private Lighting lighting;
+
     private float walkAngle;
     private float capeAngle;
     private float worldRotY;
@@ -81,8 +93,26 @@ public class PlayerModel {
     private float headPitch;
     private float worldScaleX, worldScaleY, worldScaleZ;
 
-    private boolean transformAngleDirty;
+    // groups of parts whose transforms need to be recalculated, see updateTransforms()
+    private static final int TRANSFORM_HEAD = 0x01;
+    private static final int TRANSFORM_TORSO = 0x02;
+    private static final int TRANSFORM_LIMBS = 0x04;
+    private static final int TRANSFORM_CAPE = 0x08;
+    private static final int TRANSFORM_WORLD = 0x10;
+    private static final int TRANSFORM_ALL = 0x1F;
+
+    private int dirtyTransforms = TRANSFORM_ALL;
+
+    private boolean perspective;
+    private float fovY, nearPlane, farPlane;
+    private float cameraX, cameraY, cameraZ;
 
+    private Matrix4f projection;
+    private float projectionAspect;
+
+    // each part's transform relative to the model, the world transform, and the product of the two
+    private final EnumMap<BodyPart, Matrix4f> localTransforms = new EnumMap<>(BodyPart.class);
+    private Matrix4f worldTransform;
     private final EnumMap<BodyPart, Matrix4f> transforms = new EnumMap<>(BodyPart.class);
 
     private BodyPart[] overlayParts;
@@ -92,14 +122,34 @@ public class PlayerModel {
 
     private boolean capeEnabled;
 
-    private final EnumMap<BodyPart, Mesh<?>> meshes = new EnumMap<>(BodyPart.class);
+    private final Texture skinTexture, capeTexture;
+
+    private final EnumMap<BodyPart, Mesh> meshes = new EnumMap<>(BodyPart.class);
+
+    // the faces of each overlay part, split by the opacity of their texture. fully transparent faces are in neither map,
+    // and a part with no faces of one kind has no entry in that map
+    private final EnumMap<BodyPart, Mesh> opaqueOverlays = new EnumMap<>(BodyPart.class);
+    private final EnumMap<BodyPart, Mesh> blendedOverlays = new EnumMap<>(BodyPart.class);
 
     /**
      * Creates a PlayerModel with default settings.
      */
     public PlayerModel(BufferedImage skinTexture, BufferedImage capeTexture) {
+        this(new Texture(skinTexture), capeTexture == null ? null : new Texture(capeTexture));
+    }
+
+    /**
+     * Creates a PlayerModel with default settings from textures which have already been loaded, such as those made by
+     * {@link SkinUtil#normalizeSkin(byte[])}. Textures can be shared between any number of models.
+     * @param skinTexture the 64x64 skin texture
+     * @param capeTexture the cape texture, or {@code null} if the player has no cape
+     */
+    public PlayerModel(Texture skinTexture, Texture capeTexture) {
+        Objects.requireNonNull(skinTexture, "skinTexture");
+
         translucentModel = true;
         normalModel = true;
+        lighting = Lighting.DEFAULT;
 
         walkAngle = 0.0f;
         capeAngle = 0.0f;
@@ -109,28 +159,104 @@ public class PlayerModel {
 
         setWorldScale(0.75f);
 
-        Texture tex = new Texture(skinTexture);
+        perspective = false;
+        cameraX = 0;
+        cameraY = 0;
+        cameraZ = 3;
+
+        Texture tex = this.skinTexture = skinTexture;
 
+        // the geometry is the same for every player, only the texture is ours
         for (BodyPart part : BodyPart.values()) {
             if (part == BodyPart.CAPE) continue;
 
-            meshes.put(part, part.toBuilder(tex, 0)
-                    .attach(Mesh.AttachmentType.LIGHT_FACTOR, 1f)
-                    .attach(Mesh.AttachmentType.LIGHT_VECTOR, new Vector4f(0, 0, 1, 0)).build());
+            meshes.put(part, part.getGeometry(tex.calcAspect()).withTexture(tex));
+        }
+
+        for (int i = 0; i < OVERLAY_PARTS.length; ++i) {
+            splitOverlay(OVERLAY_PARTS[i]);
+            splitOverlay(OVERLAY_PARTS_SLIM[i]);
         }
 
         if (capeTexture == null) {
             capeEnabled = false;
+            this.capeTexture = null;
         } else {
             capeEnabled = true;
-            meshes.put(BodyPart.CAPE, BodyPart.CAPE.toBuilder(new Texture(capeTexture), 0)
-                    .attach(Mesh.AttachmentType.LIGHT_FACTOR, 1f)
-                    .attach(Mesh.AttachmentType.LIGHT_VECTOR, new Vector4f(0, 0, 1, 0)).build());
+
+            Texture capeTex = this.capeTexture = capeTexture;
+            meshes.put(BodyPart.CAPE, BodyPart.CAPE.getGeometry(capeTex.calcAspect()).withTexture(capeTex));
         }
 
         setRenderOverlayFlags(OVERLAY_ALL);
     }
 
+    /**
+     * Creates a copy of a PlayerModel. The copy shares the other model's textures and geometry, but none of its state,
+     * so the two can be posed and rendered independently (and on different threads).
+     * @param other the model to copy
+     */
+    public PlayerModel(PlayerModel other) {
+        translucentModel = other.translucentModel;
+        normalModel = other.normalModel;
+        lighting = other.lighting;
+
+        walkAngle = other.walkAngle;
+        capeAngle = other.capeAngle;
+        worldRotY = other.worldRotY;
+        worldRotX = other.worldRotX;
+        headPitch = other.headPitch;
+
+        setWorldScale(other.worldScaleX, other.worldScaleY, other.worldScaleZ);
+
+        perspective = other.perspective;
+        fovY = other.fovY;
+        nearPlane = other.nearPlane;
+        farPlane = other.farPlane;
+        cameraX = other.cameraX;
+        cameraY = other.cameraY;
+        cameraZ = other.cameraZ;
+
+        skinTexture = other.skinTexture;
+        capeTexture = other.capeTexture;
+        capeEnabled = other.capeEnabled;
+        meshes.putAll(other.meshes);
+        opaqueOverlays.putAll(other.opaqueOverlays);
+        blendedOverlays.putAll(other.blendedOverlays);
+
+        setRenderOverlayFlags(other.renderOverlayFlags);
+    }
+
+    private void splitOverlay(BodyPart part) {
+        if (opaqueOverlays.containsKey(part) || blendedOverlays.containsKey(part)) return;
+
+        Mesh mesh = meshes.get(part);
+        int nTris = mesh.getTriangleCount();
+        int[] opaque = new int[nTris], blended = new int[nTris];
+        int nOpaque = 0, nBlended = 0;
+
+        for (int tri = 0; tri < nTris; ++tri) {
+            switch (mesh.getOpacity(tri)) {
+                case OPAQUE:
+                    opaque[nOpaque++] = tri;
+                    break;
+                case MIXED:
+                    blended[nBlended++] = tri;
+                    break;
+                default:
+                    break; // nothing would be drawn
+            }
+        }
+
+        if (nOpaque > 0) {
+            opaqueOverlays.put(part, mesh.withTriangles(Arrays.copyOf(opaque, nOpaque)));
+        }
+
+        if (nBlended > 0) {
+            blendedOverlays.put(part, nBlended == nTris ? mesh : mesh.withTriangles(Arrays.copyOf(blended, nBlended)));
+        }
+    }
+
     private void updateRenderParts() {
         if (normalModel) {
             renderPartsMain = MAIN_PARTS;
@@ -150,6 +276,18 @@ public class PlayerModel {
         updateRenderParts();
     }
 
+    /**
+     * Sets how the model is lit. Light directions are relative to the camera: +X is to the right, +Y is down, and +Z
+     * points towards the viewer.
+     * @param lighting the lighting, or {@code null} to draw the model unlit
+     */
+    public void setLighting(Lighting lighting) {
+        this.lighting = lighting;
+        meshes.replaceAll((part, mesh) -> mesh.withLighting(lighting));
+        opaqueOverlays.replaceAll((part, mesh) -> mesh.withLighting(lighting));
+        blendedOverlays.replaceAll((part, mesh) -> mesh.withLighting(lighting));
+    }
+
     private void updateOverlayParts() {
         int realOverlayParts = this.renderOverlayFlags & ~OVERLAY_CAPE;
         int nParts = Integer.bitCount(realOverlayParts);
@@ -207,7 +345,7 @@ public class PlayerModel {
      */
     public void setWalkAngle(float angle) {
         this.walkAngle = angle;
-        transformAngleDirty = true;
+        dirtyTransforms |= TRANSFORM_LIMBS;
     }
 
     /**
@@ -217,7 +355,7 @@ public class PlayerModel {
      */
     public void setCapeAngle(float angle) {
         this.capeAngle = angle;
-        transformAngleDirty = true;
+        dirtyTransforms |= TRANSFORM_CAPE;
     }
 
     /**
@@ -227,7 +365,7 @@ public class PlayerModel {
      */
     public void setWorldRotY(float angle) {
         this.worldRotY = angle;
-        transformAngleDirty = true;
+        dirtyTransforms |= TRANSFORM_WORLD;
     }
 
     /**
@@ -237,7 +375,7 @@ public class PlayerModel {
      */
     public void setWorldRotX(float angle) {
         this.worldRotX = angle;
-        transformAngleDirty = true;
+        dirtyTransforms |= TRANSFORM_WORLD;
     }
 
     /**
@@ -247,7 +385,34 @@ public class PlayerModel {
      */
     public void setHeadPitch(float angle) {
         this.headPitch = angle;
-        transformAngleDirty = true;
+        dirtyTransforms |= TRANSFORM_HEAD;
+    }
+
+    /**
+     * Sets all the angles of the model at once.
+     * @param pose the pose
+     * @see PlayerModel#updateTransforms()
+     */
+    public void setPose(Pose pose) {
+        // only mark the parts whose angles actually changed, so sequences don't recalculate parts that stay still
+        if (walkAngle != pose.walkAngle) setWalkAngle(pose.walkAngle);
+        if (capeAngle != pose.capeAngle) setCapeAngle(pose.capeAngle);
+        if (worldRotY != pose.worldRotY) setWorldRotY(pose.worldRotY);
+        if (worldRotX != pose.worldRotX) setWorldRotX(pose.worldRotX);
+        if (headPitch != pose.headPitch) setHeadPitch(pose.headPitch);
+    }
+
+    /**
+     * @return the current angles of the model
+     */
+    public Pose getPose() {
+        return new Pose.Builder()
+                .walkAngle(walkAngle)
+                .capeAngle(capeAngle)
+                .worldRotY(worldRotY)
+                .worldRotX(worldRotX)
+                .headPitch(headPitch)
+                .build();
     }
 
     /**
@@ -269,7 +434,112 @@ public class PlayerModel {
         this.worldScaleX = scaleX;
         this.worldScaleY = scaleY;
         this.worldScaleZ = scaleZ;
-        transformAngleDirty = true;
+        dirtyTransforms |= TRANSFORM_WORLD;
+    }
+
+    /**
+     * Renders the model with a perspective projection. The camera looks down the -Z axis from its position (see
+     * {@link PlayerModel#setCameraPosition(float, float, float)}), and the aspect ratio is taken from the framebuffer.
+     * Since the projection corrects for the aspect ratio, the world scale should usually be the same on every axis.
+     * @param fovY the vertical field of view, in radians
+     * @param near the distance from the camera to the near plane (anything closer is clipped)
+     * @param far the distance from the camera to the far plane (this only sets the depth range)
+     */
+    public void setPerspective(float fovY, float near, float far) {
+        if (near <= 0 || far <= near) {
+            throw new IllegalArgumentException("must have 0 < near < far");
+        }
+
+        this.perspective = true;
+        this.fovY = fovY;
+        this.nearPlane = near;
+        this.farPlane = far;
+        projection = null;
+    }
+
+    /**
+     * Renders the model with the default orthographic projection.
+     */
+    public void setOrthographic() {
+        this.perspective = false;
+        projection = null;
+    }
+
+    /**
+     * Sets the position of the camera used for perspective rendering. The model is centered on the origin, and the
+     * default camera position is (0, 0, 3).
+     * @param x the camera's position along the X axis (left to right)
+     * @param y the camera's position along the Y axis (top to bottom)
+     * @param z the camera's position along the Z axis (towards the viewer)
+     */
+    public void setCameraPosition(float x, float y, float z) {
+        this.cameraX = x;
+        this.cameraY = y;
+        this.cameraZ = z;
+        projection = null;
+    }
+
+    // everything that affects what render() draws, apart from the textures. used to build RenderCache keys
+    int[] getRenderState() {
+        int flags = renderOverlayFlags << 8 | (translucentModel ? 1 : 0) | (normalModel ? 2 : 0) | (perspective ? 4 : 0);
+        int nLights = lighting == null ? 0 : lighting.getLightCount();
+        int base = perspective ? 15 : 9;
+        int[] state = new int[base + 2 + nLights * 5];
+
+        state[0] = flags;
+        state[1] = Float.floatToIntBits(walkAngle);
+        state[2] = Float.floatToIntBits(capeAngle);
+        state[3] = Float.floatToIntBits(worldRotY);
+        state[4] = Float.floatToIntBits(worldRotX);
+        state[5] = Float.floatToIntBits(headPitch);
+        state[6] = Float.floatToIntBits(worldScaleX);
+        state[7] = Float.floatToIntBits(worldScaleY);
+        state[8] = Float.floatToIntBits(worldScaleZ);
+
+        if (perspective) {
+            state[9] = Float.floatToIntBits(fovY);
+            state[10] = Float.floatToIntBits(nearPlane);
+            state[11] = Float.floatToIntBits(farPlane);
+            state[12] = Float.floatToIntBits(cameraX);
+            state[13] = Float.floatToIntBits(cameraY);
+            state[14] = Float.floatToIntBits(cameraZ);
+        }
+
+        // -1 lights for no lighting at all
+        state[base] = lighting == null ? -1 : nLights;
+        state[base + 1] = lighting == null ? 0 : Float.floatToIntBits(lighting.getAmbient());
+
+        for (int i = 0; i < nLights; ++i) {
+            Vector4f dir = lighting.getDirection(i);
+            int off = base + 2 + i * 5;
+
+            state[off] = Float.floatToIntBits(dir.x);
+            state[off + 1] = Float.floatToIntBits(dir.y);
+            state[off + 2] = Float.floatToIntBits(dir.z);
+            state[off + 3] = Float.floatToIntBits(lighting.getIntensity(i));
+            state[off + 4] = lighting.isHalfLambert(i) ? 1 : 0;
+        }
+
+        return state;
+    }
+
+    long getSkinHash() {
+        return skinTexture.contentHash;
+    }
+
+    long getCapeHash() {
+        return capeTexture == null ? 0 : capeTexture.contentHash;
+    }
+
+    private Matrix4f getProjection(Framebuffer fb) {
+        float aspect = (float)fb.getWidth() / fb.getHeight();
+
+        if (projection == null || projectionAspect != aspect) {
+            projection = Matrix4f.perspective(fovY, aspect, nearPlane, farPlane).times(Matrix4f.translate(-cameraX, -cameraY, -cameraZ));
+            projectionAspect = aspect;
+        }
+
+        return projection;
     }
 
     /**
@@ -277,34 +547,66 @@ public class PlayerModel {
      * modifying the angles, world rotation, or world scale. It is also called automatically when the next frame is rendered.
      */
     public void updateTransforms() {
-        if (!transformAngleDirty) return;
-
-        transforms.put(BodyPart.HEAD, calculateTransform(BodyPart.HEAD, headPitch, 0));
-        transforms.put(BodyPart.TORSO, calculateTransform(BodyPart.TORSO, 0, 0));
-        transforms.put(BodyPart.LEFT_ARM, calculateTransform(BodyPart.LEFT_ARM, walkAngle, 0));
-        transforms.put(BodyPart.LEFT_ARM_SLIM, calculateTransform(BodyPart.LEFT_ARM_SLIM, walkAngle, 0));
-        transforms.put(BodyPart.RIGHT_ARM, calculateTransform(BodyPart.RIGHT_ARM, -walkAngle, 0));
-        transforms.put(BodyPart.RIGHT_ARM_SLIM, calculateTransform(BodyPart.RIGHT_ARM_SLIM, -walkAngle, 0));
-        transforms.put(BodyPart.LEFT_LEG, calculateTransform(BodyPart.LEFT_LEG, -walkAngle, 0));
-        transforms.put(BodyPart.RIGHT_LEG, calculateTransform(BodyPart.RIGHT_LEG, walkAngle, 0));
-
-        transforms.put(BodyPart.HAT, calculateTransform(BodyPart.HEAD, headPitch, 0));
-        transforms.put(BodyPart.TORSO_OVERLAY, calculateTransform(BodyPart.TORSO_OVERLAY, 0, 0));
-        transforms.put(BodyPart.LEFT_ARM_OVERLAY, calculateTransform(BodyPart.LEFT_ARM_OVERLAY, walkAngle, 0));
-        transforms.put(BodyPart.LEFT_ARM_OVERLAY_SLIM, calculateTransform(BodyPart.LEFT_ARM_OVERLAY_SLIM, walkAngle, 0));
-        transforms.put(BodyPart.RIGHT_ARM_OVERLAY, calculateTransform(BodyPart.RIGHT_ARM_OVERLAY, -walkAngle, 0));
-        transforms.put(BodyPart.RIGHT_ARM_OVERLAY_SLIM, calculateTransform(BodyPart.RIGHT_ARM_OVERLAY_SLIM, -walkAngle, 0));
-        transforms.put(BodyPart.LEFT_LEG_OVERLAY, calculateTransform(BodyPart.LEFT_LEG_OVERLAY, -walkAngle, 0));
-        transforms.put(BodyPart.RIGHT_LEG_OVERLAY, calculateTransform(BodyPart.RIGHT_LEG_OVERLAY, walkAngle, 0));
-
-        transforms.put(BodyPart.CAPE, calculateTransform(BodyPart.CAPE, capeAngle, 0));
-
-        Matrix4f worldTransform = Matrix4f.scale(worldScaleX, worldScaleY, worldScaleZ).times(Matrix4f.rotateX(worldRotX)).times(Matrix4f.rotateY(worldRotY));
+        int dirty = dirtyTransforms;
+        if (dirty == 0) return;
+
+        // only the parts which depend on something that changed are recalculated (the torso never moves on its own)
+        if ((dirty & TRANSFORM_HEAD) != 0) {
+            localTransforms.put(BodyPart.HEAD, calculateTransform(BodyPart.HEAD, headPitch, 0));
+            localTransforms.put(BodyPart.HAT, calculateTransform(BodyPart.HEAD, headPitch, 0));
+        }
+
+        if ((dirty & TRANSFORM_TORSO) != 0) {
+            localTransforms.put(BodyPart.TORSO, calculateTransform(BodyPart.TORSO, 0, 0));
+            localTransforms.put(BodyPart.TORSO_OVERLAY, calculateTransform(BodyPart.TORSO_OVERLAY, 0, 0));
+        }
+
+        if ((dirty & TRANSFORM_LIMBS) != 0) {
+            localTransforms.put(BodyPart.LEFT_ARM, calculateTransform(BodyPart.LEFT_ARM, walkAngle, 0));
+            localTransforms.put(BodyPart.LEFT_ARM_SLIM, calculateTransform(BodyPart.LEFT_ARM_SLIM, walkAngle, 0));
+            localTransforms.put(BodyPart.RIGHT_ARM, calculateTransform(BodyPart.RIGHT_ARM, -walkAngle, 0));
+            localTransforms.put(BodyPart.RIGHT_ARM_SLIM, calculateTransform(BodyPart.RIGHT_ARM_SLIM, -walkAngle, 0));
+            localTransforms.put(BodyPart.LEFT_LEG, calculateTransform(BodyPart.LEFT_LEG, -walkAngle, 0));
+            localTransforms.put(BodyPart.RIGHT_LEG, calculateTransform(BodyPart.RIGHT_LEG, walkAngle, 0));
+
+            localTransforms.put(BodyPart.LEFT_ARM_OVERLAY, calculateTransform(BodyPart.LEFT_ARM_OVERLAY, walkAngle, 0));
+            localTransforms.put(BodyPart.LEFT_ARM_OVERLAY_SLIM, calculateTransform(BodyPart.LEFT_ARM_OVERLAY_SLIM, walkAngle, 0));
+            localTransforms.put(BodyPart.RIGHT_ARM_OVERLAY, calculateTransform(BodyPart.RIGHT_ARM_OVERLAY, -walkAngle, 0));
+            localTransforms.put(BodyPart.RIGHT_ARM_OVERLAY_SLIM, calculateTransform(BodyPart.RIGHT_ARM_OVERLAY_SLIM, -walkAngle, 0));
+            localTransforms.put(BodyPart.LEFT_LEG_OVERLAY, calculateTransform(BodyPart.LEFT_LEG_OVERLAY, -walkAngle, 0));
+            localTransforms.put(BodyPart.RIGHT_LEG_OVERLAY, calculateTransform(BodyPart.RIGHT_LEG_OVERLAY, walkAngle, 0));
+        }
+
+        if ((dirty & TRANSFORM_CAPE) != 0) {
+            localTransforms.put(BodyPart.CAPE, calculateTransform(BodyPart.CAPE, capeAngle, 0));
+        }
+
+        if ((dirty & TRANSFORM_WORLD) != 0) {
+            worldTransform = Matrix4f.scale(worldScaleX, worldScaleY, worldScaleZ).times(Matrix4f.rotateX(worldRotX)).times(Matrix4f.rotateY(worldRotY));
+        }
+
         for (BodyPart part : BodyPart.values()) {
-            transforms.put(part, worldTransform.times(transforms.get(part), new Matrix4f()));
+            if ((dirty & (TRANSFORM_WORLD | transformGroup(part))) == 0) continue;
+
+            transforms.put(part, worldTransform.times(localTransforms.get(part), new Matrix4f()));
         }
 
-        transformAngleDirty = false;
+        dirtyTransforms = 0;
+    }
+
+    private static int transformGroup(BodyPart part) {
+        switch (part) {
+            case HEAD:
+            case HAT:
+                return TRANSFORM_HEAD;
+            case TORSO:
+            case TORSO_OVERLAY:
+                return TRANSFORM_TORSO;
+            case CAPE:
+                return TRANSFORM_CAPE;
+            default:
+                return TRANSFORM_LIMBS;
+        }
     }
 
     private Matrix4f calculateTransform(BodyPart part, float f1, float f2) {
@@ -340,9 +642,18 @@ public class PlayerModel {
         }
     }
 
+    /**
+     * Renders this model onto a Framebuffer. If the framebuffer is in tiled mode, the whole model is binned and then
+     * rasterized in one parallel pass before this method returns.
+     * @param fb the framebuffer to render onto
+     * @see Framebuffer#setTileExecutor(java.util.concurrent.Executor)
+     */
     public void render(Framebuffer fb) {
         updateTransforms(); // no-op if the angles are not dirty
 
+        boolean depthSort = fb.isDepthSortTranslucent();
+
+        fb.setProjection(perspective ? getProjection(fb) : null);
         fb.setBlendMode(BlendMode.DISABLE);
         fb.setCullBackFace(true);
 
@@ -358,18 +669,141 @@ public class PlayerModel {
             fb.drawMesh(meshes.get(part));
         }
 
-        if (translucentModel) {
-            fb.setDepthMode(Framebuffer.FB_DEPTH_USE | Framebuffer.FB_DEPTH_COMMIT_TRANSPARENT);
-            fb.setBlendMode(BlendMode.BLEND_OVER);
-            fb.setCullBackFace(false);
-        } else {
-            fb.setBlendMode(BlendMode.BINARY);
-        }
-
         if (renderPartsOverlay != null) {
+            // blending fully opaque faces gives the same result as not blending them, so only the rest are blended
+            fb.setCullBackFace(!translucentModel);
+
+            for (BodyPart part : renderPartsOverlay) {
+                Mesh mesh = opaqueOverlays.get(part);
+                if (mesh == null) continue;
+
+                fb.setTransform(transforms.get(part));
+                fb.drawMesh(mesh);
+            }
+
+            if (translucentModel) {
+                // the blended faces are sorted back to front and drawn by the flush below
+                fb.setDepthMode(Framebuffer.FB_DEPTH_USE | Framebuffer.FB_DEPTH_COMMIT_TRANSPARENT);
+                fb.setBlendMode(BlendMode.BLEND_OVER);
+                fb.setDepthSortTranslucent(true);
+            } else {
+                fb.setBlendMode(BlendMode.BINARY);
+            }
+
             for (BodyPart part : renderPartsOverlay) {
+                Mesh mesh = blendedOverlays.get(part);
+                if (mesh == null) continue;
+
                 fb.setTransform(transforms.get(part));
-                fb.drawMesh(meshes.get(part));
+                fb.drawMesh(mesh);
+            }
+        }
+
+        // draws the sorted translucent faces, and rasterizes everything if the framebuffer is in tiled mode
+        fb.flush();
+        fb.setDepthSortTranslucent(depthSort);
+    }
+
+    /**
+     * Renders a sequence of frames onto one framebuffer. For each pose in the timeline, the model is posed, the
+     * framebuffer is cleared and the model is rendered, and then the frame is handed to the consumer before the next one
+     * is drawn over it. The model is left in the last pose.
+     * @param fb the framebuffer to render onto
+     * @param background the color the framebuffer is cleared to before each frame
+     * @param timeline the pose of each frame
+     * @param consumer receives each frame in order
+     * @throws IOException if the consumer throws
+     */
+    public void renderSequence(Framebuffer fb, int background, List<Pose> timeline, FrameConsumer consumer) throws IOException {
+        for (int i = 0, max = timeline.size(); i < max; ++i) {
+            setPose(timeline.get(i));
+
+            fb.clear(Framebuffer.FB_CLEAR_COLOR | Framebuffer.FB_CLEAR_DEPTH, background);
+            render(fb);
+
+            consumer.frame(i, fb);
+        }
+    }
+
+    /**
+     * Receives the frames of a rendered sequence.
+     */
+    @FunctionalInterface
+    public interface FrameConsumer {
+        /**
+         * @param index the index of the frame in the timeline
+         * @param fb the framebuffer holding the frame. It is only valid until this method returns.
+         * @throws IOException if the frame could not be written out
+         */
+        void frame(int index, Framebuffer fb) throws IOException;
+    }
+
+    /**
+     * The angles of a player model, as set by {@link PlayerModel#setPose(Pose)}. All angles are in radians.
+     */
+    @Getter
+    public static final class Pose {
+        private final float walkAngle;
+        private final float capeAngle;
+        private final float worldRotY;
+        private final float worldRotX;
+        private final float headPitch;
+
+        private Pose(Builder builder) {
+            this.walkAngle = builder.walkAngle;
+            this.capeAngle = builder.capeAngle;
+            this.worldRotY = builder.worldRotY;
+            this.worldRotX = builder.worldRotX;
+            this.headPitch = builder.headPitch;
+        }
+
+        public static class Builder {
+            private float walkAngle, capeAngle, worldRotY, worldRotX, headPitch;
+
+            /**
+             * Creates a builder with every angle at 0.
+             */
+            public Builder() { }
+
+            /**
+             * Creates a builder starting from the angles of another pose.
+             * @param pose the pose to copy
+             */
+            public Builder(Pose pose) {
+                this.walkAngle = pose.walkAngle;
+                this.capeAngle = pose.capeAngle;
+                this.worldRotY = pose.worldRotY;
+                this.worldRotX = pose.worldRotX;
+                this.headPitch = pose.headPitch;
+            }
+
+            public Builder walkAngle(float angle) {
+                this.walkAngle = angle;
+                return this;
+            }
+
+            public Builder capeAngle(float angle) {
+                this.capeAngle = angle;
+                return this;
+            }
+
+            public Builder worldRotY(float angle) {
+                this.worldRotY = angle;
+                return this;
+            }
+
+            public Builder worldRotX(float angle) {
+                this.worldRotX = angle;
+                return this;
+            }
+
+            public Builder headPitch(float angle) {
+                this.headPitch = angle;
+                return this;
+            }
+
+            public Pose build() {
+                return new Pose(this);
             }
         }
     }
@@ -399,6 +833,8 @@ public class PlayerModel {
         private final float texBaseX, texBaseY;
         private final float texSpanX, texSpanY, texSpanZ;
 
+        private final Map<Float, Mesh> geometryCache = new ConcurrentHashMap<>();
+
         private static final float OVERLAY_OFFSET = 2f/64;
         private static final float PLANE_FIGHT_OFFSET = 0.001f;
         private static final float CAPE_OFFSET = -2 * PLANE_FIGHT_OFFSET;
@@ -436,93 +872,103 @@ public class PlayerModel {
         }
 
         private static void addCuboid(Mesh.Builder mb, float x1, float y1, float z1, float x2, float y2, float z2, float tx, float ty, float tspanX, float tspanY, float tspanZ, float aspect, int ibase) {
-            mb.vertex(new Vector4f(x1, y1, z2), /* front */
-                            new Vector4f(x1, y2, z2),
-                            new Vector4f(x2, y2, z2),
-                            new Vector4f(x2, y1, z2),
-
-                            new Vector4f(x2, y1, z2), /* +X side */
-                            new Vector4f(x2, y2, z2),
-                            new Vector4f(x2, y2, z1),
-                            new Vector4f(x2, y1, z1),
-
-                            new Vector4f(x2, y1, z1), /* back */
-                            new Vector4f(x2, y2, z1),
-                            new Vector4f(x1, y2, z1),
-                            new Vector4f(x1, y1, z1),
-
-                            new Vector4f(x1, y1, z1), /* -X side */
-                            new Vector4f(x1, y2, z1),
-                            new Vector4f(x1, y2, z2),
-                            new Vector4f(x1, y1, z2),
-
-                            new Vector4f(x1, y1, z1), /* top */
-                            new Vector4f(x1, y1, z2),
-                            new Vector4f(x2, y1, z2),
-                            new Vector4f(x2, y1, z1),
-
-                            new Vector4f(x1, y2, z1), /* bottom */
-                            new Vector4f(x1, y2, z2),
-                            new Vector4f(x2, y2, z2),
-                            new Vector4f(x2, y2, z1))
-                    .normals(new Vector4f(0, 0, 1, 0),
-                            new Vector4f(0, 0, 1, 0),
-
-                            new Vector4f(1, 0, 0, 0),
-                            new Vector4f(1, 0, 0, 0),
-
-                            new Vector4f(0, 0, -1, 0),
-                            new Vector4f(0, 0, -1, 0),
-
-                            new Vector4f(-1, 0, 0, 0),
-                            new Vector4f(-1, 0, 0, 0),
-
-                            new Vector4f(0, -1, 0, 0),
-                            new Vector4f(0, -1, 0, 0),
-
-                            new Vector4f(0, 1, 0, 0),
-                            new Vector4f(0, 1, 0, 0))
-                    .texCoords(new Vector2f(tx, ty),
-                            new Vector2f(tx, ty - tspanY),
-                            new Vector2f(tx + tspanX, ty - tspanY),
-                            new Vector2f(tx + tspanX, ty),
-
-                            new Vector2f(tx + tspanX, ty),
-                            new Vector2f(tx + tspanX, ty - tspanY),
-                            new Vector2f(tx + tspanX + tspanZ, ty - tspanY),
-                            new Vector2f(tx + tspanX + tspanZ, ty),
-
-                            new Vector2f(tx + tspanX + tspanZ, ty),
-                            new Vector2f(tx + tspanX + tspanZ, ty - tspanY),
-                            new Vector2f(tx + 2 * tspanX + tspanZ, ty - tspanY),
-                            new Vector2f(tx + 2 * tspanX + tspanZ, ty),
-
-                            new Vector2f(tx - tspanZ, ty),
-                            new Vector2f(tx - tspanZ, ty - tspanY),
-                            new Vector2f(tx, ty - tspanY),
-                            new Vector2f(tx, ty),
-
-                            new Vector2f(tx, ty + tspanZ),
-                            new Vector2f(tx, ty),
-                            new Vector2f(tx + tspanX, ty),
-                            new Vector2f(tx + tspanX, ty + (tspanZ / aspect)),
-
-                            new Vector2f(tx + tspanX, ty + (tspanZ / aspect)),
-                            new Vector2f(tx + tspanX, ty),
-                            new Vector2f(tx + 2 * tspanX, ty),
-                            new Vector2f(tx + 2 * tspanX, ty + tspanZ))
+            mb.vertex(x1, y1, z2) // front
+                    .vertex(x1, y2, z2)
+                    .vertex(x2, y2, z2)
+                    .vertex(x2, y1, z2)
+
+                    .vertex(x2, y1, z2) // +X side
+                    .vertex(x2, y2, z2)
+                    .vertex(x2, y2, z1)
+                    .vertex(x2, y1, z1)
+
+                    .vertex(x2, y1, z1) // back
+                    .vertex(x2, y2, z1)
+                    .vertex(x1, y2, z1)
+                    .vertex(x1, y1, z1)
+
+                    .vertex(x1, y1, z1) // -X side
+                    .vertex(x1, y2, z1)
+                    .vertex(x1, y2, z2)
+                    .vertex(x1, y1, z2)
+
+                    .vertex(x1, y1, z1) // top
+                    .vertex(x1, y1, z2)
+                    .vertex(x2, y1, z2)
+                    .vertex(x2, y1, z1)
+
+                    .vertex(x1, y2, z1) // bottom
+                    .vertex(x1, y2, z2)
+                    .vertex(x2, y2, z2)
+                    .vertex(x2, y2, z1)
+
+                    .normal(0, 0, 1)
+                    .normal(0, 0, 1)
+
+                    .normal(1, 0, 0)
+                    .normal(1, 0, 0)
+
+                    .normal(0, 0, -1)
+                    .normal(0, 0, -1)
+
+                    .normal(-1, 0, 0)
+                    .normal(-1, 0, 0)
+
+                    .normal(0, -1, 0)
+                    .normal(0, -1, 0)
+
+                    .normal(0, 1, 0)
+                    .normal(0, 1, 0)
+
+                    .texCoord(tx, ty)
+                    .texCoord(tx, ty - tspanY)
+                    .texCoord(tx + tspanX, ty - tspanY)
+                    .texCoord(tx + tspanX, ty)
+
+                    .texCoord(tx + tspanX, ty)
+                    .texCoord(tx + tspanX, ty - tspanY)
+                    .texCoord(tx + tspanX + tspanZ, ty - tspanY)
+                    .texCoord(tx + tspanX + tspanZ, ty)
+
+                    .texCoord(tx + tspanX + tspanZ, ty)
+                    .texCoord(tx + tspanX + tspanZ, ty - tspanY)
+                    .texCoord(tx + 2 * tspanX + tspanZ, ty - tspanY)
+                    .texCoord(tx + 2 * tspanX + tspanZ, ty)
+
+                    .texCoord(tx - tspanZ, ty)
+                    .texCoord(tx - tspanZ, ty - tspanY)
+                    .texCoord(tx, ty - tspanY)
+                    .texCoord(tx, ty)
+
+                    .texCoord(tx, ty + tspanZ)
+                    .texCoord(tx, ty)
+                    .texCoord(tx + tspanX, ty)
+                    .texCoord(tx + tspanX, ty + (tspanZ / aspect))
+
+                    .texCoord(tx + tspanX, ty + (tspanZ / aspect))
+                    .texCoord(tx + tspanX, ty)
+                    .texCoord(tx + 2 * tspanX, ty)
+                    .texCoord(tx + 2 * tspanX, ty + tspanZ)
+
                     .indices(ibase, ibase + 1, ibase + 2, ibase, ibase + 2, ibase + 3,
                             ibase + 4, ibase + 5, ibase + 6, ibase + 4, ibase + 6, ibase + 7,
                             ibase + 8, ibase + 9, ibase + 10, ibase + 8, ibase + 10, ibase + 11,
                             ibase + 12, ibase + 13, ibase + 14, ibase + 12, ibase + 14, ibase + 15,
                             ibase + 16, ibase + 17, ibase + 18, ibase + 16, ibase + 18, ibase + 19,
-                            ibase + 20, ibase + 21, ibase + 22, ibase + 20, ibase + 22, ibase + 23);
+                            ibase + 20, ibase + 22, ibase + 21, ibase + 20, ibase + 23, ibase + 22); // bottom is wound the other way to face +Y
         }
 
-        Mesh.Builder toBuilder(Texture tex, int base) {
-            Mesh.Builder builder = new Mesh.Builder().texture(tex);
-            addCuboid(builder, xMin, yMin, zMin, xMax, yMax, zMax, texBaseX, texBaseY, texSpanX, texSpanY, texSpanZ, tex.calcAspect(), base);
-            return builder;
+        /**
+         * Gets the (unbound) geometry of this body part. The texture coordinates of the bottom face depend on the
+         * aspect ratio of the texture, so the geometry is built and cached once per aspect ratio.
+         */
+        Mesh getGeometry(float aspect) {
+            return geometryCache.computeIfAbsent(aspect, a -> {
+                Mesh.Builder builder = new Mesh.Builder();
+                addCuboid(builder, xMin, yMin, zMin, xMax, yMax, zMax, texBaseX, texBaseY, texSpanX, texSpanY, texSpanZ, a, 0);
+
+                return builder.lighting(Lighting.DEFAULT).build();
+            });
         }
     }
 }
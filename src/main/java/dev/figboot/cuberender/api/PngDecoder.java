@@ -0,0 +1,361 @@
+package dev.figboot.cuberender.api;
+
+import lombok.Getter;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes PNG images straight into packed ARGB pixels, without going through ImageIO or a {@link BufferedImage}.
+ * <p>This is meant for the small textures skins and capes use: non-interlaced 8-bit truecolor or grayscale images (with
+ * or without alpha) and indexed images with 1, 2, 4 or 8 bits per pixel. Anything else, including other image formats
+ * and PNGs which look damaged, is decoded with ImageIO instead, so every image ImageIO can read can be decoded. Chunks
+ * after the end of the image data, such as IEND, are never read. Either way, the pixels are the same as
+ * {@link BufferedImage#getRGB(int, int)} gives for the image ImageIO reads. In particular, ImageIO treats grayscale
+ * samples as linear and brightens them on the way to sRGB, and this decoder does the same. Like ImageIO, gamma and color
+ * profile chunks are ignored. Each thread keeps its own Inflater and buffers, which are reused between images.</p>
+ */
+public final class PngDecoder {
+    private static final byte[] SIGNATURE = { (byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+
+    private static final int COLOR_TYPE_GRAY = 0;
+    private static final int COLOR_TYPE_RGB = 2;
+    private static final int COLOR_TYPE_INDEXED = 3;
+    private static final int COLOR_TYPE_GRAY_ALPHA = 4;
+    private static final int COLOR_TYPE_RGBA = 6;
+
+    private static final int CHUNK_IHDR = 0x49484452;
+    private static final int CHUNK_PLTE = 0x504C5445;
+    private static final int CHUNK_TRNS = 0x74524E53;
+    private static final int CHUNK_IDAT = 0x49444154;
+    private static final int CHUNK_IEND = 0x49454E44;
+
+    // larger images are left to ImageIO, which does not need to hold all of the inflated data at once
+    private static final int MAX_PIXELS = 1 << 22;
+
+    // the sRGB color of each 8-bit gray sample, as ImageIO's grayscale images convert them
+    private static final int[] GRAY_TO_RGB = grayToRGB();
+
+    private static final ThreadLocal<DecoderState> STATE = ThreadLocal.withInitial(DecoderState::new);
+
+    private PngDecoder() { }
+
+    /**
+     * Decodes an image into a new array.
+     * @param data the encoded image
+     * @return the decoded image
+     * @throws IOException if the image cannot be decoded
+     */
+    public static DecodedImage decode(byte[] data) throws IOException {
+        return decode(data, null);
+    }
+
+    /**
+     * Decodes an image.
+     * @param data the encoded image
+     * @param target the array to decode the pixels into if it is big enough, or {@code null} if a new array should be
+     *               created
+     * @return the decoded image, whose pixels are in target if it was big enough
+     * @throws IOException if the image cannot be decoded
+     */
+    public static DecodedImage decode(byte[] data, int[] target) throws IOException {
+        DecodedImage image = decodePng(data, target);
+        return image != null ? image : decodeImageIO(data, target);
+    }
+
+    private static int[] grayToRGB() {
+        BufferedImage ramp = new BufferedImage(256, 1, BufferedImage.TYPE_BYTE_GRAY);
+        byte[] samples = ((DataBufferByte)ramp.getRaster().getDataBuffer()).getData();
+
+        for (int i = 0; i < 256; ++i) {
+            samples[i] = (byte)i;
+        }
+
+        int[] rgb = ramp.getRGB(0, 0, 256, 1, null, 0, 256);
+        for (int i = 0; i < 256; ++i) {
+            rgb[i] &= 0x00FFFFFF;
+        }
+
+        return rgb;
+    }
+
+    private static DecodedImage decodeImageIO(byte[] data, int[] target) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+
+        if (image == null) {
+            throw new IOException("unsupported image format");
+        }
+
+        int width = image.getWidth(), height = image.getHeight();
+        if (target == null || target.length < width * height) target = new int[width * height];
+
+        image.getRGB(0, 0, width, height, target, 0, width);
+        return new DecodedImage(width, height, target);
+    }
+
+    // null if the image is not a PNG this decoder supports, or if it is damaged in a way ImageIO may be more forgiving
+    // about. ImageIO then decides whether it can be read
+    private static DecodedImage decodePng(byte[] data, int[] target) {
+        if (data.length < SIGNATURE.length + 25) return null;
+
+        for (int i = 0; i < SIGNATURE.length; ++i) {
+            if (data[i] != SIGNATURE[i]) return null;
+        }
+
+        int pos = SIGNATURE.length;
+        if (readInt(data, pos) != 13 || readInt(data, pos + 4) != CHUNK_IHDR) return null;
+
+        int width = readInt(data, pos + 8), height = readInt(data, pos + 12);
+        int bitDepth = data[pos + 16] & 0xFF, colorType = data[pos + 17] & 0xFF;
+
+        // compression method, filter method and interlace method
+        if (data[pos + 18] != 0 || data[pos + 19] != 0 || data[pos + 20] != 0) return null;
+        if (width <= 0 || height <= 0 || (long)width * height > MAX_PIXELS) return null;
+
+        int channels;
+        switch (colorType) {
+            case COLOR_TYPE_GRAY: channels = 1; break;
+            case COLOR_TYPE_RGB: channels = 3; break;
+            case COLOR_TYPE_INDEXED: channels = 1; break;
+            case COLOR_TYPE_GRAY_ALPHA: channels = 2; break;
+            case COLOR_TYPE_RGBA: channels = 4; break;
+            default: return null;
+        }
+
+        if (bitDepth != 8 && !(colorType == COLOR_TYPE_INDEXED && (bitDepth == 1 || bitDepth == 2 || bitDepth == 4))) {
+            return null;
+        }
+
+        DecoderState st = STATE.get();
+        int rowBytes = (width * channels * bitDepth + 7) / 8;
+        int rawLength = (rowBytes + 1) * height;
+        st.reset(rawLength, rowBytes);
+
+        int[] palette = st.palette;
+        int nPalette = 0;
+        int colorKey = -1;
+
+        Inflater inflater = st.inflater;
+        inflater.reset();
+        int inflated = 0;
+
+        pos += 8 + 13 + 4;
+
+        try {
+            // everything needed comes before the end of the image data, so whatever follows it is never looked at
+            while (inflated < rawLength) {
+                int length, type, start;
+
+                if (pos + 8 > data.length
+                        || (length = readInt(data, pos)) < 0
+                        || (start = pos + 8) + (long)length + 4 > data.length) {
+                    return null;
+                }
+
+                type = readInt(data, pos + 4);
+
+                switch (type) {
+                    case CHUNK_PLTE:
+                        nPalette = Math.min(length / 3, 256);
+                        for (int i = 0; i < nPalette; ++i) {
+                            int p = start + i * 3;
+                            palette[i] = 0xFF000000 | (data[p] & 0xFF) << 16 | (data[p + 1] & 0xFF) << 8 | (data[p + 2] & 0xFF);
+                        }
+                        break;
+                    case CHUNK_TRNS:
+                        if (colorType == COLOR_TYPE_INDEXED) {
+                            for (int i = 0, max = Math.min(length, nPalette); i < max; ++i) {
+                                palette[i] = (palette[i] & 0x00FFFFFF) | (data[start + i] & 0xFF) << 24;
+                            }
+                        } else if (colorType == COLOR_TYPE_GRAY && length >= 2) {
+                            colorKey = readShort(data, start);
+                        } else if (colorType == COLOR_TYPE_RGB && length >= 6) {
+                            // the samples are 16 bits, anything over 255 matches no 8-bit color
+                            int r = readShort(data, start), g = readShort(data, start + 2), b = readShort(data, start + 4);
+                            if ((r | g | b) < 256) colorKey = r << 16 | g << 8 | b;
+                        }
+                        break;
+                    case CHUNK_IDAT:
+                        inflater.setInput(data, start, length);
+
+                        while (inflated < rawLength && !inflater.needsInput()) {
+                            int n = inflater.inflate(st.raw, inflated, rawLength - inflated);
+                            if (n == 0 && (inflater.finished() || inflater.needsDictionary())) break;
+
+                            inflated += n;
+                        }
+                        break;
+                    case CHUNK_IEND:
+                        // ended before all of the image data
+                        return null;
+                    default:
+                        // bit 5 of the first letter is clear for chunks that are needed to decode the image correctly
+                        if ((type & 0x20000000) == 0) return null;
+                }
+
+                pos = start + length + 4;
+            }
+        } catch (DataFormatException ex) {
+            return null;
+        }
+
+        if (colorType == COLOR_TYPE_INDEXED && nPalette == 0) return null;
+        if (!unfilter(st, rowBytes, Math.max(1, channels * bitDepth / 8), height)) return null;
+
+        if (target == null || target.length < width * height) target = new int[width * height];
+
+        convert(st.raw, rowBytes, width, height, colorType, bitDepth, palette, colorKey, target);
+
+        return new DecodedImage(width, height, target);
+    }
+
+    // undoes the row filters in place. the filter type byte of each row is left alone. false if a filter type is invalid
+    private static boolean unfilter(DecoderState st, int rowBytes, int bpp, int height) {
+        byte[] raw = st.raw;
+
+        for (int y = 0; y < height; ++y) {
+            int row = y * (rowBytes + 1) + 1;
+            int filter = raw[row - 1];
+
+            // the first row is filtered against a row of zeroes
+            byte[] prev = y == 0 ? st.zeroRow : raw;
+            int prevRow = y == 0 ? 0 : row - rowBytes - 1;
+
+            switch (filter) {
+                case 0:
+                    break;
+                case 1:
+                    for (int i = bpp; i < rowBytes; ++i) {
+                        raw[row + i] += raw[row + i - bpp];
+                    }
+                    break;
+                case 2:
+                    for (int i = 0; i < rowBytes; ++i) {
+                        raw[row + i] += prev[prevRow + i];
+                    }
+                    break;
+                case 3:
+                    for (int i = 0; i < rowBytes; ++i) {
+                        int left = i < bpp ? 0 : raw[row + i - bpp] & 0xFF;
+                        raw[row + i] += (byte)((left + (prev[prevRow + i] & 0xFF)) >>> 1);
+                    }
+                    break;
+                case 4:
+                    for (int i = 0; i < rowBytes; ++i) {
+                        int a = i < bpp ? 0 : raw[row + i - bpp] & 0xFF;
+                        int b = prev[prevRow + i] & 0xFF;
+                        int c = i < bpp ? 0 : prev[prevRow + i - bpp] & 0xFF;
+
+                        int p = a + b - c;
+                        int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+
+                        raw[row + i] += (byte)(pa <= pb && pa <= pc ? a : pb <= pc ? b : c);
+                    }
+                    break;
+                default:
+                    return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static void convert(byte[] raw, int rowBytes, int width, int height, int colorType, int bitDepth,
+                                int[] palette, int colorKey, int[] out) {
+        for (int y = 0; y < height; ++y) {
+            int s = y * (rowBytes + 1) + 1, d = y * width;
+
+            switch (colorType) {
+                case COLOR_TYPE_RGBA:
+                    for (int x = 0; x < width; ++x, s += 4) {
+                        out[d + x] = (raw[s + 3] & 0xFF) << 24 | (raw[s] & 0xFF) << 16 | (raw[s + 1] & 0xFF) << 8 | (raw[s + 2] & 0xFF);
+                    }
+                    break;
+                case COLOR_TYPE_RGB:
+                    for (int x = 0; x < width; ++x, s += 3) {
+                        int rgb = (raw[s] & 0xFF) << 16 | (raw[s + 1] & 0xFF) << 8 | (raw[s + 2] & 0xFF);
+                        out[d + x] = rgb == colorKey ? rgb : 0xFF000000 | rgb;
+                    }
+                    break;
+                case COLOR_TYPE_GRAY_ALPHA:
+                    for (int x = 0; x < width; ++x, s += 2) {
+                        out[d + x] = (raw[s + 1] & 0xFF) << 24 | GRAY_TO_RGB[raw[s] & 0xFF];
+                    }
+                    break;
+                case COLOR_TYPE_GRAY:
+                    for (int x = 0; x < width; ++x, ++s) {
+                        int v = raw[s] & 0xFF;
+                        out[d + x] = (v == colorKey ? 0 : 0xFF000000) | GRAY_TO_RGB[v];
+                    }
+                    break;
+                case COLOR_TYPE_INDEXED:
+                    if (bitDepth == 8) {
+                        for (int x = 0; x < width; ++x, ++s) {
+                            out[d + x] = palette[raw[s] & 0xFF];
+                        }
+                    } else {
+                        // pixels are packed into bytes starting from the most significant bits
+                        int perByte = 8 / bitDepth, mask = (1 << bitDepth) - 1;
+                        for (int x = 0; x < width; ++x) {
+                            int shift = 8 - bitDepth * (x % perByte + 1);
+                            out[d + x] = palette[(raw[s + x / perByte] >>> shift) & mask];
+                        }
+                    }
+                    break;
+            }
+        }
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return (b[off] & 0xFF) << 24 | (b[off + 1] & 0xFF) << 16 | (b[off + 2] & 0xFF) << 8 | (b[off + 3] & 0xFF);
+    }
+
+    private static int readShort(byte[] b, int off) {
+        return (b[off] & 0xFF) << 8 | (b[off + 1] & 0xFF);
+    }
+
+    /**
+     * The pixels of a decoded image, as rows of ARGB pixels (not premultiplied), starting with the top row.
+     */
+    @Getter
+    public static final class DecodedImage {
+        private final int width, height;
+
+        /**
+         * The pixels. The array may be longer than width * height if it was passed in to be reused.
+         */
+        private final int[] pixels;
+
+        private DecodedImage(int width, int height, int[] pixels) {
+            this.width = width;
+            this.height = height;
+            this.pixels = pixels;
+        }
+    }
+
+    // buffers reused by every image decoded on a thread
+    private static class DecoderState {
+        // the inflater lives as long as the thread does, its native memory is freed when the state is collected
+        final Inflater inflater = new Inflater();
+
+        // the palette, which is opaque black for indices the PLTE chunk does not cover
+        final int[] palette = new int[256];
+
+        // the inflated image data: each row is its filter type followed by its bytes
+        byte[] raw = new byte[0];
+        byte[] zeroRow = new byte[0];
+
+        void reset(int rawLength, int rowBytes) {
+            if (raw.length < rawLength) raw = new byte[rawLength];
+            if (zeroRow.length < rowBytes) zeroRow = new byte[rowBytes];
+
+            Arrays.fill(palette, 0xFF000000);
+        }
+    }
+}
@@ -0,0 +1,784 @@
+package dev.figboot.cuberender.api;
+
+import dev.figboot.cuberender.state.Framebuffer;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes images as PNG without going through ImageIO. Rows are filtered and compressed one at a time and written out
+ * in IDAT chunks as the compressed data is produced, so the whole encoded image is never held in memory.
+ * <p>Opaque images are written without an alpha channel, and images with at most 256 colors are written as indexed
+ * color if palette output is enabled. An encoder is immutable and may be shared between threads; each thread keeps its
+ * own Deflater and buffers, which are reused between images.</p>
+ */
+public class PngEncoder {
+    private static final byte[] SIGNATURE = { (byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+
+    private static final int COLOR_TYPE_RGB = 2;
+    private static final int COLOR_TYPE_INDEXED = 3;
+    private static final int COLOR_TYPE_RGBA = 6;
+
+    // maximum amount of compressed data in a single IDAT chunk
+    private static final int IDAT_SIZE = 32768;
+
+    // filter types in the order the adaptive filter tries them
+    private static final int[] ADAPTIVE_ORDER = { 2, 1, 0, 4, 3 };
+
+    private static final ThreadLocal<EncoderState> STATE = ThreadLocal.withInitial(EncoderState::new);
+
+    /**
+     * The deflate compression level, from 0 (no compression) to 9 (best compression).
+     */
+    @Getter private final int compressionLevel;
+
+    /**
+     * The filter applied to the rows of truecolor images. Indexed images are always written unfiltered, which is what
+     * the PNG specification recommends for them.
+     */
+    @Getter private final Filter filter;
+
+    /**
+     * Whether images with at most 256 colors are written as indexed color.
+     */
+    @Getter private final boolean palette;
+
+    /**
+     * Creates an encoder with the default settings: compression level 6, the {@link Filter#UP} filter and palette
+     * output.
+     */
+    public PngEncoder() {
+        this(new Builder());
+    }
+
+    private PngEncoder(Builder builder) {
+        this.compressionLevel = builder.compressionLevel;
+        this.filter = builder.filter;
+        this.palette = builder.palette;
+    }
+
+    /**
+     * Encodes the color buffer of a framebuffer.
+     * @param fb the framebuffer
+     * @param out the stream to write to. The stream is not flushed or closed.
+     * @throws IOException if writing to the stream fails
+     */
+    public void encode(Framebuffer fb, OutputStream out) throws IOException {
+        encode(fb.getColor(), out::write);
+    }
+
+    /**
+     * Encodes the color buffer of a framebuffer.
+     * @param fb the framebuffer
+     * @param channel the blocking channel to write to. The channel is not closed.
+     * @throws IOException if writing to the channel fails
+     */
+    public void encode(Framebuffer fb, WritableByteChannel channel) throws IOException {
+        encode(fb.getColor(), channelSink(channel));
+    }
+
+    /**
+     * Encodes an image. {@link BufferedImage#TYPE_INT_ARGB} images are read straight from their raster, anything else
+     * is converted first.
+     * @param image the image
+     * @param out the stream to write to. The stream is not flushed or closed.
+     * @throws IOException if writing to the stream fails
+     */
+    public void encode(BufferedImage image, OutputStream out) throws IOException {
+        encode(image, out::write);
+    }
+
+    /**
+     * Encodes an image. {@link BufferedImage#TYPE_INT_ARGB} images are read straight from their raster, anything else
+     * is converted first.
+     * @param image the image
+     * @param channel the blocking channel to write to. The channel is not closed.
+     * @throws IOException if writing to the channel fails
+     */
+    public void encode(BufferedImage image, WritableByteChannel channel) throws IOException {
+        encode(image, channelSink(channel));
+    }
+
+    private static Sink channelSink(WritableByteChannel channel) {
+        Objects.requireNonNull(channel, "channel");
+
+        return (b, off, len) -> {
+            ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        };
+    }
+
+    private void encode(BufferedImage image, Sink sink) throws IOException {
+        int width = image.getWidth(), height = image.getHeight();
+        EncoderState st = STATE.get();
+
+        st.loadPixels(image);
+
+        int colorType = analyze(st, st.src, st.srcOffset, st.srcStride, width, height);
+
+        sink.write(SIGNATURE, 0, SIGNATURE.length);
+        writeHeader(st, sink, width, height, colorType);
+
+        if (colorType == COLOR_TYPE_INDEXED) {
+            writePalette(st, sink);
+        }
+
+        st.sequence = -1;
+        writeImageData(st, sink, st.src, st.srcOffset, st.srcStride, width, height, colorType);
+        st.src = null;
+
+        writeChunk(st, sink, "IEND", st.header, 0);
+    }
+
+    /**
+     * Starts writing an animated PNG (APNG).
+     * @param out the stream to write to. The stream is not flushed or closed.
+     * @param width the width of every frame
+     * @param height the height of every frame
+     * @param frames the number of frames that will be written
+     * @param loops the number of times the animation plays, or 0 to loop forever
+     * @return the writer to write the frames with
+     * @throws IOException if writing to the stream fails
+     */
+    public AnimationWriter startAnimation(OutputStream out, int width, int height, int frames, int loops) throws IOException {
+        return new AnimationWriter(out::write, width, height, frames, loops);
+    }
+
+    /**
+     * Starts writing an animated PNG (APNG).
+     * @param channel the blocking channel to write to. The channel is not closed.
+     * @param width the width of every frame
+     * @param height the height of every frame
+     * @param frames the number of frames that will be written
+     * @param loops the number of times the animation plays, or 0 to loop forever
+     * @return the writer to write the frames with
+     * @throws IOException if writing to the channel fails
+     */
+    public AnimationWriter startAnimation(WritableByteChannel channel, int width, int height, int frames, int loops) throws IOException {
+        return new AnimationWriter(channelSink(channel), width, height, frames, loops);
+    }
+
+    private static void writeHeader(EncoderState st, Sink sink, int width, int height, int colorType) throws IOException {
+        byte[] header = st.header;
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8; // bit depth
+        header[9] = (byte)colorType;
+        header[10] = 0; // deflate
+        header[11] = 0; // adaptive filtering
+        header[12] = 0; // no interlacing
+        writeChunk(st, sink, "IHDR", header, 13);
+    }
+
+    // filters and compresses the pixels into IDAT chunks, or fdAT chunks if st.sequence is not negative
+    private void writeImageData(EncoderState st, Sink sink, int[] pixels, int offset, int stride, int width, int height, int colorType) throws IOException {
+        int bpp = colorType == COLOR_TYPE_INDEXED ? 1 : colorType == COLOR_TYPE_RGB ? 3 : 4;
+        int rowLen = width * bpp;
+
+        Deflater deflater = st.deflater;
+        deflater.reset();
+        deflater.setLevel(compressionLevel);
+        st.resetImageChunk();
+
+        st.ensureRowCapacity(rowLen);
+        byte[] raw = st.raw, prev = st.prev;
+        Arrays.fill(prev, 0, rowLen, (byte)0);
+
+        Filter rowFilter = colorType == COLOR_TYPE_INDEXED ? Filter.NONE : filter;
+
+        for (int y = 0; y < height; ++y) {
+            int rowOff = offset + y * stride;
+
+            switch (colorType) {
+                case COLOR_TYPE_INDEXED:
+                    packIndexed(st, pixels, rowOff, width, raw);
+                    break;
+                case COLOR_TYPE_RGB:
+                    for (int x = 0, i = 0; x < width; ++x, i += 3) {
+                        int c = pixels[rowOff + x];
+                        raw[i] = (byte)(c >>> 16);
+                        raw[i + 1] = (byte)(c >>> 8);
+                        raw[i + 2] = (byte)c;
+                    }
+                    break;
+                default:
+                    for (int x = 0, i = 0; x < width; ++x, i += 4) {
+                        int c = pixels[rowOff + x];
+                        raw[i] = (byte)(c >>> 16);
+                        raw[i + 1] = (byte)(c >>> 8);
+                        raw[i + 2] = (byte)c;
+                        raw[i + 3] = (byte)(c >>> 24);
+                    }
+            }
+
+            byte[] filtered = filterRow(st, rowFilter, raw, prev, rowLen, bpp);
+            deflater.setInput(filtered, 0, rowLen + 1);
+            while (!deflater.needsInput()) {
+                drainDeflater(st, sink);
+            }
+
+            // the current row becomes the previous one
+            st.raw = prev;
+            st.prev = raw;
+            prev = raw;
+            raw = st.raw;
+        }
+
+        deflater.finish();
+        while (!deflater.finished()) {
+            drainDeflater(st, sink);
+        }
+
+        if (st.idatLength > st.imageChunkStart()) {
+            writeImageChunk(st, sink);
+        }
+    }
+
+    // collects the palette (if enabled) and returns the color type the image should be written with
+    private int analyze(EncoderState st, int[] pixels, int offset, int stride, int width, int height) {
+        boolean opaque = true;
+        boolean indexed = palette;
+
+        st.clearPalette();
+
+        for (int y = 0; y < height; ++y) {
+            // pixel art has long runs of the same color, so only look up a color when it changes
+            int last = 0;
+            boolean haveLast = false;
+
+            for (int i = offset + y * stride, max = i + width; i < max; ++i) {
+                int c = pixels[i];
+                if (haveLast && c == last) continue;
+
+                last = c;
+                haveLast = true;
+
+                if ((c >>> 24) != 0xFF) opaque = false;
+                if (indexed && st.addColor(c) < 0) {
+                    indexed = false;
+                    if (!opaque) break;
+                }
+            }
+
+            if (!indexed && !opaque) break;
+        }
+
+        if (indexed) return COLOR_TYPE_INDEXED;
+        return opaque ? COLOR_TYPE_RGB : COLOR_TYPE_RGBA;
+    }
+
+    private static void writePalette(EncoderState st, Sink sink) throws IOException {
+        int n = st.nColors;
+        int[] colors = st.colors;
+
+        // translucent entries go first so the tRNS chunk only has to cover them
+        int nTranslucent = 0;
+        for (int i = 0; i < n; ++i) {
+            if ((colors[i] >>> 24) != 0xFF) {
+                int c = colors[i];
+                colors[i] = colors[nTranslucent];
+                colors[nTranslucent++] = c;
+            }
+        }
+
+        st.reindexPalette();
+
+        byte[] buf = st.paletteBuffer;
+        for (int i = 0; i < n; ++i) {
+            int c = colors[i];
+            buf[i * 3] = (byte)(c >>> 16);
+            buf[i * 3 + 1] = (byte)(c >>> 8);
+            buf[i * 3 + 2] = (byte)c;
+        }
+        writeChunk(st, sink, "PLTE", buf, n * 3);
+
+        if (nTranslucent > 0) {
+            for (int i = 0; i < nTranslucent; ++i) {
+                buf[i] = (byte)(colors[i] >>> 24);
+            }
+            writeChunk(st, sink, "tRNS", buf, nTranslucent);
+        }
+    }
+
+    private static void packIndexed(EncoderState st, int[] pixels, int off, int width, byte[] raw) {
+        int last = pixels[off];
+        byte lastIdx = (byte)st.indexOf(last);
+
+        for (int x = 0; x < width; ++x) {
+            int c = pixels[off + x];
+            if (c != last) {
+                last = c;
+                lastIdx = (byte)st.indexOf(c);
+            }
+
+            raw[x] = lastIdx;
+        }
+    }
+
+    // returns a buffer holding the filter type byte followed by the filtered row
+    private static byte[] filterRow(EncoderState st, Filter filter, byte[] raw, byte[] prev, int len, int bpp) {
+        if (filter != Filter.ADAPTIVE) {
+            byte[] out = st.filtered[0];
+            applyFilter(filter.type, raw, prev, out, len, bpp);
+            return out;
+        }
+
+        // minimum sum of absolute differences, as suggested by the PNG specification. flat-shaded pixel art often
+        // repeats whole rows, so UP goes first and a row which filters to all zeroes ends the search
+        byte[] best = null;
+        long bestScore = Long.MAX_VALUE;
+
+        for (int i = 0; i < ADAPTIVE_ORDER.length; ++i) {
+            byte[] out = st.filtered[i];
+            applyFilter(ADAPTIVE_ORDER[i], raw, prev, out, len, bpp);
+
+            long score = 0;
+            for (int j = 1; j <= len && score < bestScore; ++j) {
+                score += Math.abs(out[j]);
+            }
+
+            if (score < bestScore) {
+                best = out;
+                bestScore = score;
+                if (score == 0) break;
+            }
+        }
+
+        return best;
+    }
+
+    private static void applyFilter(int type, byte[] raw, byte[] prev, byte[] out, int len, int bpp) {
+        out[0] = (byte)type;
+
+        switch (type) {
+            case 0:
+                System.arraycopy(raw, 0, out, 1, len);
+                break;
+            case 1:
+                System.arraycopy(raw, 0, out, 1, Math.min(bpp, len));
+                for (int i = bpp; i < len; ++i) {
+                    out[i + 1] = (byte)(raw[i] - raw[i - bpp]);
+                }
+                break;
+            case 2:
+                for (int i = 0; i < len; ++i) {
+                    out[i + 1] = (byte)(raw[i] - prev[i]);
+                }
+                break;
+            case 3:
+                for (int i = 0; i < len; ++i) {
+                    int a = i >= bpp ? raw[i - bpp] & 0xFF : 0;
+                    out[i + 1] = (byte)(raw[i] - ((a + (prev[i] & 0xFF)) >>> 1));
+                }
+                break;
+            case 4:
+                for (int i = 0; i < len; ++i) {
+                    int a = i >= bpp ? raw[i - bpp] & 0xFF : 0;
+                    int b = prev[i] & 0xFF;
+                    int c = i >= bpp ? prev[i - bpp] & 0xFF : 0;
+                    out[i + 1] = (byte)(raw[i] - paeth(a, b, c));
+                }
+                break;
+        }
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+
+        if (pa <= pb && pa <= pc) return a;
+        return pb <= pc ? b : c;
+    }
+
+    // moves compressed data from the deflater into the IDAT buffer, writing the chunk out whenever it fills up
+    private static void drainDeflater(EncoderState st, Sink sink) throws IOException {
+        st.idatLength += st.deflater.deflate(st.idat, st.idatLength, IDAT_SIZE - st.idatLength);
+
+        if (st.idatLength == IDAT_SIZE) {
+            writeImageChunk(st, sink);
+        }
+    }
+
+    private static void writeImageChunk(EncoderState st, Sink sink) throws IOException {
+        if (st.sequence < 0) {
+            writeChunk(st, sink, "IDAT", st.idat, st.idatLength);
+        } else {
+            // fdAT chunks are IDAT chunks with a sequence number in front
+            putInt(st.idat, 0, st.sequence++);
+            writeChunk(st, sink, "fdAT", st.idat, st.idatLength);
+        }
+
+        st.resetImageChunk();
+    }
+
+    private static void writeChunk(EncoderState st, Sink sink, String type, byte[] data, int len) throws IOException {
+        byte[] buf = st.chunkHeader;
+        putInt(buf, 0, len);
+        for (int i = 0; i < 4; ++i) {
+            buf[4 + i] = (byte)type.charAt(i);
+        }
+
+        CRC32 crc = st.crc;
+        crc.reset();
+        crc.update(buf, 4, 4);
+        crc.update(data, 0, len);
+
+        sink.write(buf, 0, 8);
+        sink.write(data, 0, len);
+
+        putInt(buf, 0, (int)crc.getValue());
+        sink.write(buf, 0, 4);
+    }
+
+    private static void putInt(byte[] buf, int off, int v) {
+        buf[off] = (byte)(v >>> 24);
+        buf[off + 1] = (byte)(v >>> 16);
+        buf[off + 2] = (byte)(v >>> 8);
+        buf[off + 3] = (byte)v;
+    }
+
+    /**
+     * Writes the frames of an animated PNG one at a time, so only one frame has to be kept in memory. Frames are always
+     * stored as RGBA, and only the rectangle that changed since the previous frame is encoded. A writer must only be
+     * used by one thread at a time.
+     */
+    public final class AnimationWriter {
+        private final Sink sink;
+        private final int width, height, frames;
+
+        private int written;
+        private int sequence;
+
+        // the last frame written, to find the part of the next frame which changed
+        private final int[] previous;
+
+        private AnimationWriter(Sink sink, int width, int height, int frames, int loops) throws IOException {
+            if (width <= 0 || height <= 0) {
+                throw new IllegalArgumentException("size must be positive");
+            }
+
+            if (frames <= 0) {
+                throw new IllegalArgumentException("an animation needs at least one frame");
+            }
+
+            if (loops < 0) {
+                throw new IllegalArgumentException("loops must not be negative");
+            }
+
+            this.sink = sink;
+            this.width = width;
+            this.height = height;
+            this.frames = frames;
+            this.previous = new int[width * height];
+
+            EncoderState st = STATE.get();
+
+            sink.write(SIGNATURE, 0, SIGNATURE.length);
+            writeHeader(st, sink, width, height, COLOR_TYPE_RGBA);
+
+            putInt(st.header, 0, frames);
+            putInt(st.header, 4, loops);
+            writeChunk(st, sink, "acTL", st.header, 8);
+        }
+
+        /**
+         * Writes the color buffer of a framebuffer as the next frame.
+         * @param fb the framebuffer, which must be the same size as the animation
+         * @param delayMillis how long the frame is shown for, in milliseconds (at most 65535)
+         * @throws IOException if writing fails
+         */
+        public void writeFrame(Framebuffer fb, int delayMillis) throws IOException {
+            writeFrame(fb.getColor(), delayMillis);
+        }
+
+        /**
+         * Writes the next frame.
+         * @param image the frame, which must be the same size as the animation
+         * @param delayMillis how long the frame is shown for, in milliseconds (at most 65535)
+         * @throws IOException if writing fails
+         */
+        public void writeFrame(BufferedImage image, int delayMillis) throws IOException {
+            if (written == frames) {
+                throw new IllegalStateException("all frames have already been written");
+            }
+
+            if (image.getWidth() != width || image.getHeight() != height) {
+                throw new IllegalArgumentException("frame size does not match the animation");
+            }
+
+            if (delayMillis < 0 || delayMillis > 0xFFFF) {
+                throw new IllegalArgumentException("delay must be between 0 and 65535 ms");
+            }
+
+            EncoderState st = STATE.get();
+            st.loadPixels(image);
+
+            int[] pixels = st.src;
+            int offset = st.srcOffset, stride = st.srcStride;
+
+            // the first frame is the default image and has to cover the whole canvas
+            int x0 = 0, y0 = 0, x1 = width - 1, y1 = height - 1;
+
+            if (written > 0) {
+                x0 = width;
+                y0 = height;
+                x1 = y1 = -1;
+
+                for (int y = 0; y < height; ++y) {
+                    int row = offset + y * stride, prevRow = y * width;
+
+                    int left = 0;
+                    while (left < width && pixels[row + left] == previous[prevRow + left]) ++left;
+                    if (left == width) continue;
+
+                    int right = width - 1;
+                    while (pixels[row + right] == previous[prevRow + right]) --right;
+
+                    y0 = Math.min(y0, y);
+                    y1 = y;
+                    x0 = Math.min(x0, left);
+                    x1 = Math.max(x1, right);
+                }
+
+                // frames can't be empty, so an unchanged frame rewrites a single pixel
+                if (y1 < 0) {
+                    x0 = y0 = x1 = y1 = 0;
+                }
+            }
+
+            int frameWidth = x1 - x0 + 1, frameHeight = y1 - y0 + 1;
+
+            for (int y = y0; y <= y1; ++y) {
+                System.arraycopy(pixels, offset + y * stride + x0, previous, y * width + x0, frameWidth);
+            }
+
+            byte[] ctl = st.frameControl;
+            putInt(ctl, 0, sequence++);
+            putInt(ctl, 4, frameWidth);
+            putInt(ctl, 8, frameHeight);
+            putInt(ctl, 12, x0);
+            putInt(ctl, 16, y0);
+            ctl[20] = (byte)(delayMillis >>> 8);
+            ctl[21] = (byte)delayMillis;
+            ctl[22] = (byte)(1000 >>> 8);
+            ctl[23] = (byte)1000;
+            ctl[24] = 0; // leave the canvas as it is after the frame
+            ctl[25] = 0; // replace the region instead of blending over it
+            writeChunk(st, sink, "fcTL", ctl, 26);
+
+            st.sequence = written == 0 ? -1 : sequence;
+            writeImageData(st, sink, pixels, offset + y0 * stride + x0, stride, frameWidth, frameHeight, COLOR_TYPE_RGBA);
+
+            if (written > 0) {
+                sequence = st.sequence;
+            }
+
+            st.sequence = -1;
+            st.src = null;
+            ++written;
+        }
+
+        /**
+         * Ends the animation.
+         * @throws IOException if writing fails
+         * @throws IllegalStateException if fewer frames were written than the animation was started with
+         */
+        public void finish() throws IOException {
+            if (written != frames) {
+                throw new IllegalStateException("only " + written + " of " + frames + " frames were written");
+            }
+
+            EncoderState st = STATE.get();
+            writeChunk(st, sink, "IEND", st.header, 0);
+        }
+    }
+
+    /**
+     * Row filters. {@link Filter#ADAPTIVE} picks a filter for each row with the minimum sum of absolute differences
+     * heuristic from the PNG specification.
+     */
+    @RequiredArgsConstructor
+    public enum Filter {
+        NONE(0),
+        SUB(1),
+        UP(2),
+        AVERAGE(3),
+        PAETH(4),
+        ADAPTIVE(-1);
+
+        private final int type;
+    }
+
+    @FunctionalInterface
+    private interface Sink {
+        void write(byte[] b, int off, int len) throws IOException;
+    }
+
+    // buffers reused by every image encoded on a thread
+    private static class EncoderState {
+        // the deflater lives as long as the thread does, its native memory is freed when the state is collected
+        final Deflater deflater = new Deflater();
+        final CRC32 crc = new CRC32();
+
+        final byte[] header = new byte[13];
+        final byte[] chunkHeader = new byte[8];
+        final byte[] frameControl = new byte[26];
+        final byte[] idat = new byte[IDAT_SIZE];
+        int idatLength;
+
+        // the APNG sequence number of the next fdAT chunk, or -1 when writing IDAT chunks
+        int sequence = -1;
+
+        // the pixels being encoded, see loadPixels
+        int[] src;
+        int srcOffset, srcStride;
+
+        int[] pixels = new int[0];
+        byte[] raw = new byte[0], prev = new byte[0];
+        final byte[][] filtered = new byte[ADAPTIVE_ORDER.length][0];
+
+        // open-addressed color -> palette index table
+        final int[] tableColors = new int[1024];
+        final int[] tableIndices = new int[1024];
+        final int[] colors = new int[256];
+        int nColors;
+        final byte[] paletteBuffer = new byte[256 * 3];
+
+        void loadPixels(BufferedImage image) {
+            Raster raster = image.getRaster();
+
+            if (image.getType() == BufferedImage.TYPE_INT_ARGB && raster.getDataBuffer() instanceof DataBufferInt
+                    && raster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
+                // framebuffers (and any other int ARGB image) can be read in place
+                SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel)raster.getSampleModel();
+
+                src = ((DataBufferInt)raster.getDataBuffer()).getData();
+                srcStride = sm.getScanlineStride();
+                srcOffset = -raster.getSampleModelTranslateY() * srcStride - raster.getSampleModelTranslateX();
+            } else {
+                int width = image.getWidth(), height = image.getHeight();
+                if (pixels.length < width * height) pixels = new int[width * height];
+
+                src = pixels;
+                srcOffset = 0;
+                srcStride = width;
+                image.getRGB(0, 0, width, height, pixels, 0, width);
+            }
+        }
+
+        int imageChunkStart() {
+            return sequence < 0 ? 0 : 4;
+        }
+
+        void resetImageChunk() {
+            idatLength = imageChunkStart();
+        }
+
+        void ensureRowCapacity(int len) {
+            if (raw.length < len) raw = new byte[len];
+            if (prev.length < len) prev = new byte[len];
+
+            for (int i = 0; i < filtered.length; ++i) {
+                if (filtered[i].length < len + 1) filtered[i] = new byte[len + 1];
+            }
+        }
+
+        void clearPalette() {
+            Arrays.fill(tableIndices, -1);
+            nColors = 0;
+        }
+
+        private static int slot(int c) {
+            int h = c * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & 1023;
+        }
+
+        // returns the index of the color, or -1 if the palette is full
+        int addColor(int c) {
+            for (int slot = slot(c); ; slot = (slot + 1) & 1023) {
+                int idx = tableIndices[slot];
+
+                if (idx < 0) {
+                    if (nColors == 256) return -1;
+
+                    tableColors[slot] = c;
+                    tableIndices[slot] = nColors;
+                    colors[nColors] = c;
+                    return nColors++;
+                }
+
+                if (tableColors[slot] == c) return idx;
+            }
+        }
+
+        int indexOf(int c) {
+            for (int slot = slot(c); ; slot = (slot + 1) & 1023) {
+                if (tableColors[slot] == c && tableIndices[slot] >= 0) return tableIndices[slot];
+            }
+        }
+
+        // updates the table after the palette has been reordered
+        void reindexPalette() {
+            for (int i = 0; i < nColors; ++i) {
+                int c = colors[i];
+                for (int slot = slot(c); ; slot = (slot + 1) & 1023) {
+                    if (tableColors[slot] == c && tableIndices[slot] >= 0) {
+                        tableIndices[slot] = i;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    public static class Builder {
+        private int compressionLevel;
+        private Filter filter;
+        private boolean palette;
+
+        public Builder() {
+            this.compressionLevel = 6;
+            // rendered skins are upscaled pixel art, so most rows repeat the one above and UP turns them into zeroes. this
+            // compresses better than the adaptive heuristic and skips its cost
+            this.filter = Filter.UP;
+            this.palette = true;
+        }
+
+        public Builder compressionLevel(int level) {
+            if (level < 0 || level > 9) {
+                throw new IllegalArgumentException("compression level must be between 0 and 9");
+            }
+
+            this.compressionLevel = level;
+            return this;
+        }
+
+        public Builder filter(Filter filter) {
+            this.filter = Objects.requireNonNull(filter, "filter");
+            return this;
+        }
+
+        public Builder palette(boolean palette) {
+            this.palette = palette;
+            return this;
+        }
+
+        public PngEncoder build() {
+            return new PngEncoder(this);
+        }
+    }
+}
@@ -0,0 +1,439 @@
+package dev.figboot.cuberender.api;
+
+import dev.figboot.cuberender.state.AntiAliasMode;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.*;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Caches the results of rendering player models, so repeated renders of the same skin, pose and output parameters only
+ * have to be rendered once.
+ * <p>Results are keyed by a {@link Key}, which holds content hashes of the model's skin and cape along with all of its
+ * render state and the output parameters. The in-memory tier is bounded by the total size of its values and evicts the
+ * least recently used entries. An optional disk tier keeps every result as a file in a directory, so a new cache
+ * created on the same directory (for example after a restart) starts out warm. The disk tier is not bounded, its
+ * directory can be cleaned up externally at any time.</p>
+ * <p>All methods are thread-safe.</p>
+ * @param <V> the type of the cached results
+ */
+public class RenderCache<V> {
+    private static final int FILE_MAGIC = 0x43445243; // "CDRC"
+    private static final String FILE_SUFFIX = ".cdrc";
+
+    private final Codec<V> codec;
+    private final long maxBytes;
+    private final Path directory;
+
+    private final LinkedHashMap<Key, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder diskHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder diskErrors = new LongAdder();
+
+    /**
+     * Creates an in-memory cache.
+     * @param codec describes the size of the values (and how to store them on disk)
+     * @param maxBytes the maximum total size of the values kept in memory
+     */
+    public RenderCache(Codec<V> codec, long maxBytes) {
+        this.codec = Objects.requireNonNull(codec, "codec");
+        this.maxBytes = maxBytes;
+        this.directory = null;
+
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must not be negative");
+        }
+    }
+
+    /**
+     * Creates a cache with a disk tier.
+     * @param codec describes the size of the values and how to store them on disk
+     * @param maxBytes the maximum total size of the values kept in memory
+     * @param directory the directory to keep results in. It is created if it does not exist.
+     * @throws IOException if the directory could not be created
+     */
+    public RenderCache(Codec<V> codec, long maxBytes, Path directory) throws IOException {
+        this.codec = Objects.requireNonNull(codec, "codec");
+        this.maxBytes = maxBytes;
+        this.directory = Files.createDirectories(directory);
+
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must not be negative");
+        }
+    }
+
+    /**
+     * Looks up a result, first in memory, then on disk. Results found on disk are brought back into memory.
+     * @param key the key
+     * @return the cached result, or {@code null} if there is none
+     */
+    public V get(Key key) {
+        V value;
+        synchronized (entries) {
+            value = entries.get(key);
+        }
+
+        if (value != null) {
+            hits.increment();
+            return value;
+        }
+
+        value = readFromDisk(key);
+        if (value != null) {
+            diskHits.increment();
+            putInMemory(key, value);
+            return value;
+        }
+
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Stores a result in memory and, if there is a disk tier, on disk.
+     * @param key the key
+     * @param value the result
+     */
+    public void put(Key key, V value) {
+        Objects.requireNonNull(key, "key");
+        Objects.requireNonNull(value, "value");
+
+        putInMemory(key, value);
+        writeToDisk(key, value);
+    }
+
+    /**
+     * Looks up a result, computing and storing it if it isn't cached. The lock is not held while the result is
+     * computed, so two threads missing on the same key at once may both compute it.
+     * @param key the key
+     * @param render computes the result
+     * @return the cached or computed result
+     */
+    public V computeIfAbsent(Key key, Function<? super Key, ? extends V> render) {
+        V value = get(key);
+        if (value != null) return value;
+
+        value = render.apply(key);
+        if (value != null) put(key, value);
+        return value;
+    }
+
+    /**
+     * Removes every entry from memory. The disk tier is left alone.
+     */
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+            bytes = 0;
+        }
+    }
+
+    private void putInMemory(Key key, V value) {
+        long size = codec.sizeOf(value);
+
+        synchronized (entries) {
+            V old = entries.put(key, value);
+            if (old != null) bytes -= codec.sizeOf(old);
+            bytes += size;
+
+            // the map is in access order, so the eldest entries are the least recently used
+            for (Iterator<V> it = entries.values().iterator(); bytes > maxBytes && it.hasNext(); ) {
+                bytes -= codec.sizeOf(it.next());
+                it.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    private Path fileFor(Key key) {
+        return directory.resolve(String.format("%016x%s", key.longHash(), FILE_SUFFIX));
+    }
+
+    private V readFromDisk(Key key) {
+        if (directory == null) return null;
+
+        Path file = fileFor(key);
+        if (!Files.isRegularFile(file)) return null;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC) return null;
+
+            // the file name is only a hash of the key, so make sure the file is really for this key
+            if (!key.matches(in)) return null;
+
+            // the data can't be longer than the file, so a corrupt length can't make this allocate too much
+            int length = in.readInt();
+            if (length < 0 || length > Files.size(file)) throw new IOException("bad data length");
+
+            byte[] data = new byte[length];
+            in.readFully(data);
+            return codec.decode(data);
+        } catch (IOException | RuntimeException ex) {
+            // codecs may throw unchecked exceptions on garbage too. either way the entry is treated as a miss
+            diskErrors.increment();
+            return null;
+        }
+    }
+
+    private void writeToDisk(Key key, V value) {
+        if (directory == null) return;
+
+        Path file = fileFor(key);
+        Path temp = null;
+
+        try {
+            // write to a temporary file first so readers never see a partially written result
+            temp = Files.createTempFile(directory, "tmp", null);
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                byte[] data = codec.encode(value);
+
+                out.writeInt(FILE_MAGIC);
+                key.write(out);
+                out.writeInt(data.length);
+                out.write(data);
+            }
+
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            diskErrors.increment();
+
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    /**
+     * @return the number of lookups answered from memory
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of lookups answered from the disk tier
+     */
+    public long getDiskHits() {
+        return diskHits.sum();
+    }
+
+    /**
+     * @return the number of lookups that found nothing
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of entries evicted from memory to stay under the size limit
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the number of disk reads and writes that failed. A failed read counts as a miss.
+     */
+    public long getDiskErrors() {
+        return diskErrors.sum();
+    }
+
+    /**
+     * @return the number of entries in memory
+     */
+    public int getEntryCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return the total size of the values in memory
+     */
+    public long getSizeBytes() {
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+
+    /**
+     * Identifies a render: the contents of the skin and cape, the model's state and the output parameters.
+     * Texture contents are compared by a 64-bit hash, everything else is compared exactly.
+     */
+    public static final class Key {
+        private final long skinHash, capeHash;
+        private final int[] state;
+        private final int hashCode;
+
+        private Key(long skinHash, long capeHash, int[] state) {
+            this.skinHash = skinHash;
+            this.capeHash = capeHash;
+            this.state = state;
+            this.hashCode = (int)(longHash() >>> 32);
+        }
+
+        /**
+         * Creates the key of a model rendered with its current state. Changing the model afterwards does not affect
+         * the key.
+         * @param model the model
+         * @param width the width of the framebuffer
+         * @param height the height of the framebuffer
+         * @param background the color the framebuffer is cleared to
+         * @param antiAliasMode the anti-aliasing mode of the framebuffer
+         * @return the key
+         */
+        public static Key of(PlayerModel model, int width, int height, int background, AntiAliasMode antiAliasMode) {
+            int[] modelState = model.getRenderState();
+            int[] state = Arrays.copyOf(modelState, modelState.length + 4);
+
+            state[modelState.length] = width;
+            state[modelState.length + 1] = height;
+            state[modelState.length + 2] = background;
+            state[modelState.length + 3] = antiAliasMode.ordinal();
+
+            return new Key(model.getSkinHash(), model.getCapeHash(), state);
+        }
+
+        // used to name the key's file in the disk tier
+        long longHash() {
+            long h = skinHash * 0x9E3779B97F4A7C15L ^ Long.rotateLeft(capeHash * 0xC2B2AE3D27D4EB4FL, 29);
+
+            for (int s : state) {
+                h = Long.rotateLeft(h ^ (s * 0xC2B2AE3D27D4EB4FL), 31) * 0x9E3779B97F4A7C15L;
+            }
+
+            h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+            h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+            return h ^ (h >>> 31);
+        }
+
+        void write(DataOutput out) throws IOException {
+            out.writeLong(skinHash);
+            out.writeLong(capeHash);
+            out.writeInt(state.length);
+
+            for (int s : state) {
+                out.writeInt(s);
+            }
+        }
+
+        // reads a key written by write and checks that it is this one. the stored length is only compared, never
+        // trusted, so a corrupt key can't make this allocate anything
+        boolean matches(DataInput in) throws IOException {
+            if (in.readLong() != skinHash || in.readLong() != capeHash || in.readInt() != state.length) return false;
+
+            for (int s : state) {
+                if (in.readInt() != s) return false;
+            }
+
+            return true;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+
+            Key key = (Key)o;
+            return skinHash == key.skinHash && capeHash == key.capeHash && Arrays.equals(state, key.state);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /**
+     * Measures cached values and converts them to and from bytes for the disk tier.
+     * @param <V> the type of the values
+     */
+    public interface Codec<V> {
+        /**
+         * Stores encoded images (for example the PNG data from {@link BatchRenderer}) as they are.
+         */
+        Codec<byte[]> ENCODED = new Codec<byte[]>() {
+            @Override
+            public long sizeOf(byte[] value) {
+                return value.length;
+            }
+
+            @Override
+            public byte[] encode(byte[] value) {
+                return value;
+            }
+
+            @Override
+            public byte[] decode(byte[] data) {
+                return data;
+            }
+        };
+
+        /**
+         * Stores raw {@link BufferedImage#TYPE_INT_ARGB} images. Cached images are shared, so they must not be modified.
+         */
+        Codec<BufferedImage> RAW = new Codec<BufferedImage>() {
+            @Override
+            public long sizeOf(BufferedImage value) {
+                return (long)value.getWidth() * value.getHeight() * 4;
+            }
+
+            @Override
+            public byte[] encode(BufferedImage value) throws IOException {
+                int w = value.getWidth(), h = value.getHeight();
+                int[] pixels = value.getRGB(0, 0, w, h, null, 0, w);
+
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(8 + pixels.length * 4);
+                DataOutputStream out = new DataOutputStream(bytes);
+
+                out.writeInt(w);
+                out.writeInt(h);
+                for (int p : pixels) {
+                    out.writeInt(p);
+                }
+
+                return bytes.toByteArray();
+            }
+
+            @Override
+            public BufferedImage decode(byte[] data) throws IOException {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+                int w = in.readInt(), h = in.readInt();
+
+                if (w <= 0 || h <= 0 || data.length != 8 + (long)w * h * 4) throw new IOException("bad image size");
+
+                BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+                int[] pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+                for (int i = 0; i < pixels.length; ++i) {
+                    pixels[i] = in.readInt();
+                }
+
+                return image;
+            }
+        };
+
+        /**
+         * @param value the value
+         * @return the number of bytes the value takes up in memory
+         */
+        long sizeOf(V value);
+
+        byte[] encode(V value) throws IOException;
+
+        V decode(byte[] data) throws IOException;
+    }
+}
@@ -0,0 +1,291 @@
+package dev.figboot.cuberender.api;
+
+import dev.figboot.cuberender.state.AntiAliasMode;
+import dev.figboot.cuberender.state.Framebuffer;
+import lombok.Getter;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Renders animations of a player model, such as turntables and walk cycles. Each frame of a timeline of poses is
+ * rendered and handed off (or encoded) as soon as it is finished, so memory use does not grow with the length of the
+ * animation.
+ * <p>Frames are rendered on copies of the model (see {@link PlayerModel#PlayerModel(PlayerModel)}), which share its
+ * textures and geometry, so the model itself is never modified. Framebuffers are reused from frame to frame, and only
+ * the transforms of parts whose angles changed are recalculated.</p>
+ */
+public class SequenceRenderer {
+    @Getter private final int width, height;
+    @Getter private final int background;
+    @Getter private final AntiAliasMode antiAliasMode;
+
+    /**
+     * The executor frames are rendered on, or {@code null} to render them on the calling thread.
+     */
+    @Getter private final Executor executor;
+
+    /**
+     * The number of frames rendered at once when there is an executor.
+     */
+    @Getter private final int parallelism;
+
+    private SequenceRenderer(Builder builder) {
+        this.width = builder.width;
+        this.height = builder.height;
+        this.background = builder.background;
+        this.antiAliasMode = builder.antiAliasMode;
+        this.executor = builder.executor;
+        this.parallelism = builder.parallelism;
+    }
+
+    /**
+     * Renders every frame of a timeline. The consumer is always called on the calling thread, in timeline order.
+     * @param model the model to render
+     * @param timeline the pose of each frame
+     * @param consumer receives each frame
+     * @throws IOException if the consumer throws
+     */
+    public void render(PlayerModel model, List<PlayerModel.Pose> timeline, PlayerModel.FrameConsumer consumer) throws IOException {
+        if (executor == null || parallelism == 1) {
+            new PlayerModel(model).renderSequence(newFramebuffer(), background, timeline, consumer);
+            return;
+        }
+
+        int nSlots = Math.min(parallelism, timeline.size());
+        PlayerModel[] models = new PlayerModel[nSlots];
+        Framebuffer[] framebuffers = new Framebuffer[nSlots];
+        List<CompletableFuture<Void>> pending = new ArrayList<>(Collections.nCopies(nSlots, null));
+
+        for (int i = 0; i < nSlots; ++i) {
+            models[i] = new PlayerModel(model);
+            framebuffers[i] = newFramebuffer();
+            pending.set(i, renderAsync(models[i], framebuffers[i], timeline.get(i)));
+        }
+
+        // frame i always goes to slot i % nSlots. as soon as a frame has been consumed, its slot starts on the frame
+        // nSlots ahead, so the workers keep rendering while the consumer encodes
+        for (int i = 0, max = timeline.size(); i < max; ++i) {
+            int slot = i % nSlots;
+
+            try {
+                pending.get(slot).join();
+            } catch (CompletionException ex) {
+                if (ex.getCause() instanceof RuntimeException) throw (RuntimeException)ex.getCause();
+                if (ex.getCause() instanceof Error) throw (Error)ex.getCause();
+                throw ex;
+            }
+
+            consumer.frame(i, framebuffers[slot]);
+
+            if (i + nSlots < max) {
+                pending.set(slot, renderAsync(models[slot], framebuffers[slot], timeline.get(i + nSlots)));
+            }
+        }
+    }
+
+    private Framebuffer newFramebuffer() {
+        Framebuffer fb = new Framebuffer(width, height, antiAliasMode);
+        fb.setLazyClear(true); // every frame is cleared and then read out once
+        return fb;
+    }
+
+    private CompletableFuture<Void> renderAsync(PlayerModel model, Framebuffer fb, PlayerModel.Pose pose) {
+        return CompletableFuture.runAsync(() -> {
+            model.setPose(pose);
+
+            fb.clear(Framebuffer.FB_CLEAR_COLOR | Framebuffer.FB_CLEAR_DEPTH, background);
+            model.render(fb);
+
+            // resolve anti-aliasing on the worker as well
+            fb.getColor();
+        }, executor);
+    }
+
+    /**
+     * Renders a timeline as an animated PNG. Frames are encoded as they are rendered.
+     * @param model the model to render
+     * @param timeline the pose of each frame
+     * @param delayMillis how long each frame is shown for, in milliseconds
+     * @param loops the number of times the animation plays, or 0 to loop forever
+     * @param encoder the encoder settings to use
+     * @param out the stream to write to. The stream is not flushed or closed.
+     * @throws IOException if writing fails
+     */
+    public void writeApng(PlayerModel model, List<PlayerModel.Pose> timeline, int delayMillis, int loops, PngEncoder encoder, OutputStream out) throws IOException {
+        PngEncoder.AnimationWriter writer = encoder.startAnimation(out, width, height, timeline.size(), loops);
+        render(model, timeline, (index, fb) -> writer.writeFrame(fb, delayMillis));
+        writer.finish();
+    }
+
+    /**
+     * Renders a timeline as an animated GIF using ImageIO. GIFs only have 256 colors per frame and binary transparency,
+     * so {@link SequenceRenderer#writeApng(PlayerModel, List, int, int, PngEncoder, OutputStream)} gives better
+     * results.
+     * @param model the model to render
+     * @param timeline the pose of each frame
+     * @param delayMillis how long each frame is shown for, in milliseconds (GIF rounds this down to 10 ms steps)
+     * @param loops the number of times the animation repeats, or 0 to loop forever
+     * @param out the stream to write to. The stream is not closed.
+     * @throws IOException if writing fails
+     */
+    public void writeGif(PlayerModel model, List<PlayerModel.Pose> timeline, int delayMillis, int loops, OutputStream out) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("gif").next();
+
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(ios);
+            writer.prepareWriteSequence(null);
+
+            render(model, timeline, (index, fb) -> {
+                BufferedImage image = fb.getColor();
+                IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), null);
+                setGifFrameMetadata(metadata, delayMillis, index == 0 ? loops : -1);
+
+                writer.writeToSequence(new IIOImage(image, null, metadata), null);
+            });
+
+            writer.endWriteSequence();
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    // loops is only written to the first frame, and is -1 for the rest
+    private static void setGifFrameMetadata(IIOMetadata metadata, int delayMillis, int loops) throws IOException {
+        String format = metadata.getNativeMetadataFormatName();
+        IIOMetadataNode root = (IIOMetadataNode)metadata.getAsTree(format);
+
+        IIOMetadataNode gce = getOrCreateNode(root, "GraphicControlExtension");
+        gce.setAttribute("disposalMethod", "restoreToBackgroundColor"); // transparent frames must not pile up
+        gce.setAttribute("userInputFlag", "FALSE");
+        gce.setAttribute("delayTime", Integer.toString(delayMillis / 10));
+
+        if (loops >= 0) {
+            IIOMetadataNode app = new IIOMetadataNode("ApplicationExtension");
+            app.setAttribute("applicationID", "NETSCAPE");
+            app.setAttribute("authenticationCode", "2.0");
+            app.setUserObject(new byte[] { 1, (byte)loops, (byte)(loops >>> 8) });
+
+            getOrCreateNode(root, "ApplicationExtensions").appendChild(app);
+        }
+
+        metadata.setFromTree(format, root);
+    }
+
+    private static IIOMetadataNode getOrCreateNode(IIOMetadataNode root, String name) {
+        for (int i = 0; i < root.getLength(); ++i) {
+            if (root.item(i).getNodeName().equals(name)) {
+                return (IIOMetadataNode)root.item(i);
+            }
+        }
+
+        IIOMetadataNode node = new IIOMetadataNode(name);
+        root.appendChild(node);
+        return node;
+    }
+
+    /**
+     * Creates a timeline which spins the model one full turn about the Y axis.
+     * @param base the pose to start from
+     * @param frames the number of frames
+     * @return the timeline
+     */
+    public static List<PlayerModel.Pose> turntable(PlayerModel.Pose base, int frames) {
+        List<PlayerModel.Pose> timeline = new ArrayList<>(frames);
+
+        for (int i = 0; i < frames; ++i) {
+            timeline.add(new PlayerModel.Pose.Builder(base)
+                    .worldRotY(base.getWorldRotY() + (float)(2 * Math.PI * i / frames))
+                    .build());
+        }
+
+        return timeline;
+    }
+
+    /**
+     * Creates a timeline of one walk cycle: the limbs swing forward, back, and forward again.
+     * @param base the pose to start from
+     * @param frames the number of frames
+     * @param amplitude the largest walk angle reached, in radians
+     * @return the timeline
+     */
+    public static List<PlayerModel.Pose> walkCycle(PlayerModel.Pose base, int frames, float amplitude) {
+        List<PlayerModel.Pose> timeline = new ArrayList<>(frames);
+
+        for (int i = 0; i < frames; ++i) {
+            timeline.add(new PlayerModel.Pose.Builder(base)
+                    .walkAngle(amplitude * (float)Math.sin(2 * Math.PI * i / frames))
+                    .build());
+        }
+
+        return timeline;
+    }
+
+    public static class Builder {
+        private final int width, height;
+        private int background;
+        private AntiAliasMode antiAliasMode;
+        private Executor executor;
+        private int parallelism;
+
+        /**
+         * @param width the width of the frames
+         * @param height the height of the frames
+         */
+        public Builder(int width, int height) {
+            if (width <= 0 || height <= 0) {
+                throw new IllegalArgumentException("size must be positive");
+            }
+
+            this.width = width;
+            this.height = height;
+            this.background = 0x00000000;
+            this.antiAliasMode = AntiAliasMode.NONE;
+            this.parallelism = 1;
+        }
+
+        public Builder background(int argb) {
+            this.background = argb;
+            return this;
+        }
+
+        public Builder antiAliasing(AntiAliasMode mode) {
+            this.antiAliasMode = Objects.requireNonNull(mode, "mode");
+            return this;
+        }
+
+        /**
+         * Renders several frames at once. Each frame being rendered needs its own framebuffer.
+         * @param executor the executor to render frames on
+         * @param parallelism the number of frames to render at once
+         */
+        public Builder parallel(Executor executor, int parallelism) {
+            if (parallelism <= 0) {
+                throw new IllegalArgumentException("parallelism must be positive");
+            }
+
+            this.executor = Objects.requireNonNull(executor, "executor");
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        public SequenceRenderer build() {
+            return new SequenceRenderer(this);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package dev.figboot.cuberender.api;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+/**
+ * Converts many legacy skins and OptiFine capes concurrently on a pool of worker threads, reading and writing PNG
+ * files.
+ * <p>Files are decoded with {@link PngDecoder}. 64x32 images are converted with
+ * {@link SkinUtil#convertToModernSkin(int[], int[])} and 46x22 images with
+ * {@link SkinUtil#convertOFToRegular(int[], int[])}. Since regular capes are 64x32 as well, only legacy skins and
+ * OptiFine capes should be passed to a converter. Each worker keeps its own pixel buffers and reuses them between
+ * files. Like {@link BatchRenderer}, the number of files that can be queued or converting at once is bounded, and
+ * {@link SkinConverter#submit(Path, Path)} blocks while that limit is reached.</p>
+ */
+public class SkinConverter implements AutoCloseable {
+    private final WorkerPool pool;
+
+    /**
+     * The number of worker threads.
+     */
+    @Getter private final int threads;
+
+    /**
+     * The encoder used for the converted images.
+     */
+    @Getter @Setter private volatile PngEncoder pngEncoder = new PngEncoder();
+
+    private final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+
+    /**
+     * Creates a SkinConverter with one worker per available processor and a queue of 16 files per worker.
+     */
+    public SkinConverter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a SkinConverter with a queue of 16 files per worker.
+     * @param threads the number of worker threads
+     */
+    public SkinConverter(int threads) {
+        this(threads, threads * 16);
+    }
+
+    /**
+     * Creates a SkinConverter.
+     * @param threads the number of worker threads
+     * @param queueCapacity the number of files that may wait for a worker before {@link SkinConverter#submit(Path, Path)}
+     *                      blocks
+     */
+    public SkinConverter(int threads, int queueCapacity) {
+        this.pool = new WorkerPool(threads, queueCapacity, "CubeDisplay skin converter");
+        this.threads = threads;
+    }
+
+    /**
+     * Queues a file for conversion. This blocks if the queue is full.
+     * @param source the legacy skin or OptiFine cape to read
+     * @param target the file to write the converted texture to. It is replaced if it already exists.
+     * @return a future which is completed with the target once it has been written
+     * @throws InterruptedException if the thread is interrupted while waiting for room in the queue
+     */
+    public CompletableFuture<Path> submit(Path source, Path target) throws InterruptedException {
+        Objects.requireNonNull(source, "source");
+        Objects.requireNonNull(target, "target");
+
+        return pool.submit(() -> {
+            convert(source, target);
+            return target;
+        });
+    }
+
+    /**
+     * Converts every file in a stream, blocking whenever the queue is full. Each converted texture is written to the
+     * output directory under the same file name. This method returns once every file has been queued. The callback is
+     * invoked as each file finishes, usually from the worker thread that converted it. If a file finishes before it has
+     * been handed the callback, the callback is invoked from the thread calling this method instead, so the callback
+     * must be thread-safe either way.
+     * @param sources the files to convert
+     * @param outputDirectory the directory to write the converted textures to
+     * @param callback the callback to deliver each result (or failure) to
+     * @throws InterruptedException if the thread is interrupted while waiting for room in the queue
+     */
+    public void convertAll(Stream<Path> sources, Path outputDirectory, Callback callback) throws InterruptedException {
+        Objects.requireNonNull(outputDirectory, "outputDirectory");
+
+        for (Path source : (Iterable<Path>)sources::iterator) {
+            Path target = outputDirectory.resolve(source.getFileName().toString());
+            submit(source, target).whenComplete((p, t) -> callback.converted(source, target, t));
+        }
+    }
+
+    /**
+     * Converts every PNG file in a directory (but not its subdirectories), as
+     * {@link SkinConverter#convertAll(Stream, Path, Callback)} does.
+     * @param directory the directory to convert the files of
+     * @param outputDirectory the directory to write the converted textures to. It may not be the same directory.
+     * @param callback the callback to deliver each result (or failure) to
+     * @throws IOException if the directory cannot be listed
+     * @throws InterruptedException if the thread is interrupted while waiting for room in the queue
+     */
+    public void convertDirectory(Path directory, Path outputDirectory, Callback callback) throws IOException, InterruptedException {
+        try (Stream<Path> files = Files.list(directory)) {
+            convertAll(files.filter(p -> Files.isRegularFile(p)
+                    && p.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".png")), outputDirectory, callback);
+        }
+    }
+
+    private void convert(Path source, Path target) throws IOException {
+        Buffers buf = buffers.get();
+        PngDecoder.DecodedImage image = PngDecoder.decode(Files.readAllBytes(source), buf.source);
+        int width = image.getWidth(), height = image.getHeight();
+        BufferedImage result;
+
+        if (width == SkinUtil.LEGACY_SKIN_WIDTH && height == SkinUtil.LEGACY_SKIN_HEIGHT) {
+            SkinUtil.convertToModernSkin(image.getPixels(), buf.skinPixels);
+            result = buf.skin;
+        } else if (width == SkinUtil.OPTIFINE_CAPE_WIDTH && height == SkinUtil.OPTIFINE_CAPE_HEIGHT) {
+            SkinUtil.convertOFToRegular(image.getPixels(), buf.capePixels);
+            result = buf.cape;
+        } else {
+            throw new IllegalArgumentException(source + " is " + width + "x" + height + ", not a 64x32 skin or a 46x22 OptiFine cape");
+        }
+
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            pngEncoder.encode(result, channel);
+        }
+    }
+
+    /**
+     * @return the number of files that have been converted successfully
+     */
+    public long getConvertedFiles() {
+        return pool.getCompletedTasks();
+    }
+
+    /**
+     * @return the number of files that have failed to convert
+     */
+    public long getFailedFiles() {
+        return pool.getFailedTasks();
+    }
+
+    /**
+     * Stops accepting files and waits for queued files to finish. If the thread is interrupted while waiting, this
+     * returns early with the thread's interrupt flag set, and the remaining files still finish in the background.
+     */
+    @Override
+    public void close() {
+        pool.close();
+    }
+
+    /**
+     * Receives the result of a file converted by {@link SkinConverter#convertAll(Stream, Path, Callback)}.
+     */
+    @FunctionalInterface
+    public interface Callback {
+        /**
+         * @param source the file that was read
+         * @param target the file that was written
+         * @param error the reason conversion failed, or {@code null} if it succeeded
+         */
+        void converted(Path source, Path target, Throwable error);
+    }
+
+    // images are decoded into source, and converted straight into the rasters of the images which are then encoded
+    private static class Buffers {
+        final int[] source = new int[SkinUtil.LEGACY_SKIN_WIDTH * SkinUtil.LEGACY_SKIN_HEIGHT];
+
+        final BufferedImage skin = new BufferedImage(SkinUtil.SKIN_WIDTH, SkinUtil.SKIN_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        final int[] skinPixels = ((DataBufferInt)skin.getRaster().getDataBuffer()).getData();
+
+        final BufferedImage cape = new BufferedImage(SkinUtil.CAPE_WIDTH, SkinUtil.CAPE_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        final int[] capePixels = ((DataBufferInt)cape.getRaster().getDataBuffer()).getData();
+    }
+}
@@ -1,78 +1,407 @@
 package dev.figboot.cuberender.api;
 
-import java.awt.*;
+import dev.figboot.cuberender.state.Texture;
+import lombok.Getter;
+
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.IOException;
+import java.util.Arrays;
 
+/**
+ * Converts old skin and cape textures into the layouts {@link PlayerModel} expects.
+ * <p>The conversions work on packed ARGB {@code int[]} rasters, one row (or part of a row) at a time. The
+ * {@code int[]} methods take rows of exactly the texture's width and can write into a caller-supplied array, so
+ * converting many textures allocates nothing. The {@link BufferedImage} methods read and write
+ * {@link BufferedImage#TYPE_INT_ARGB} images in place and convert anything else in bulk. To convert whole directories
+ * of textures, see {@link SkinConverter}.</p>
+ * <p>{@link SkinUtil#normalizeSkin(byte[])} and {@link SkinUtil#normalizeCape(byte[])} go all the way from an encoded
+ * image to a {@link Texture} ready for {@link PlayerModel#PlayerModel(Texture, Texture)}, so skins can be normalized
+ * once when they are fetched and then cached.</p>
+ */
 public final class SkinUtil {
+    public static final int LEGACY_SKIN_WIDTH = 64, LEGACY_SKIN_HEIGHT = 32;
+    public static final int SKIN_WIDTH = 64, SKIN_HEIGHT = 64;
+    public static final int OPTIFINE_CAPE_WIDTH = 46, OPTIFINE_CAPE_HEIGHT = 22;
+    public static final int CAPE_WIDTH = 64, CAPE_HEIGHT = 32;
+
     private SkinUtil() { }
 
-    private static void copyLimbFlipped(BufferedImage src, BufferedImage target) {
-        for (int y = 4, maxY = src.getHeight(); y < maxY; ++y) {
-            for (int x = 0; x < 4; ++x) {
-                target.setRGB(x, y, src.getRGB(11 - x, y));
-                target.setRGB(x + 4, y, src.getRGB(7 - x, y));
-                target.setRGB(x + 8, y, src.getRGB(3 - x, y));
-                target.setRGB(x + 12, y, src.getRGB(15 - x, y));
-            }
+    // copies n pixels from src to dst in reverse order
+    private static void copyReversed(int[] src, int srcOff, int[] dst, int dstOff, int n) {
+        for (int i = 0, j = srcOff + n - 1; i < n; ++i, --j) {
+            dst[dstOff + i] = src[j];
         }
+    }
 
+    // mirrors the 16x16 texture of an arm or leg at src[srcOff] into dst[dstOff], swapping its left and right faces
+    private static void copyLimbFlipped(int[] src, int srcOff, int srcStride, int[] dst, int dstOff, int dstStride) {
         for (int y = 0; y < 4; ++y) {
-            for (int x = 0; x < 4; ++x) {
-                target.setRGB(x + 4, y, src.getRGB(7 - x, y));
-                target.setRGB(x + 8, y, src.getRGB(11 - x, y));
-            }
+            int s = srcOff + y * srcStride, d = dstOff + y * dstStride;
+
+            // top and bottom
+            copyReversed(src, s + 4, dst, d + 4, 4);
+            copyReversed(src, s + 8, dst, d + 8, 4);
+        }
+
+        for (int y = 4; y < 16; ++y) {
+            int s = srcOff + y * srcStride, d = dstOff + y * dstStride;
+
+            // the outer and inner faces swap places, the front and back stay where they are
+            copyReversed(src, s + 8, dst, d, 4);
+            copyReversed(src, s + 4, dst, d + 4, 4);
+            copyReversed(src, s, dst, d + 8, 4);
+            copyReversed(src, s + 12, dst, d + 12, 4);
+        }
+    }
+
+    private static void convertToModernSkin(int[] src, int srcOff, int srcStride, int[] dst, int dstOff, int dstStride) {
+        for (int y = 0; y < LEGACY_SKIN_HEIGHT; ++y) {
+            System.arraycopy(src, srcOff + y * srcStride, dst, dstOff + y * dstStride, LEGACY_SKIN_WIDTH);
+        }
+
+        // the new half is only partly filled in, so clear what was there before
+        for (int y = LEGACY_SKIN_HEIGHT; y < SKIN_HEIGHT; ++y) {
+            int d = dstOff + y * dstStride;
+            Arrays.fill(dst, d, d + SKIN_WIDTH, 0);
+        }
+
+        // legacy skins only have a right arm and leg, so the left ones are mirror images of them
+        copyLimbFlipped(src, srcOff + 16 * srcStride, srcStride, dst, dstOff + 48 * dstStride + 16, dstStride);
+        copyLimbFlipped(src, srcOff + 16 * srcStride + 40, srcStride, dst, dstOff + 48 * dstStride + 32, dstStride);
+    }
+
+    private static void convertOFToRegular(int[] src, int srcOff, int srcStride, int[] dst, int dstOff, int dstStride) {
+        for (int y = 0; y < OPTIFINE_CAPE_HEIGHT; ++y) {
+            int d = dstOff + y * dstStride;
+            System.arraycopy(src, srcOff + y * srcStride, dst, d, OPTIFINE_CAPE_WIDTH);
+            Arrays.fill(dst, d + OPTIFINE_CAPE_WIDTH, d + CAPE_WIDTH, 0);
+        }
+
+        for (int y = OPTIFINE_CAPE_HEIGHT; y < CAPE_HEIGHT; ++y) {
+            int d = dstOff + y * dstStride;
+            Arrays.fill(dst, d, d + CAPE_WIDTH, 0);
         }
     }
 
+    private static int[] checkTarget(int[] target, int width, int height) {
+        if (target == null) {
+            return new int[width * height];
+        } else if (target.length < width * height) {
+            throw new IllegalArgumentException("target array must hold at least " + width + "x" + height + " pixels");
+        }
+
+        return target;
+    }
+
+    /**
+     * This function converts a 64x32 skin (1.8 and earlier) into a modern (64x64) skin texture. The left arm and leg,
+     * which old skins do not have, are mirror images of the right ones.
+     * @param image the old skin, as 32 rows of 64 ARGB pixels
+     * @param target the array to place the new skin into, or {@code null} if a new array should be created. The first
+     *               64 * 64 pixels are overwritten.
+     * @return the new skin, as 64 rows of 64 ARGB pixels
+     */
+    public static int[] convertToModernSkin(int[] image, int[] target) {
+        if (image.length < LEGACY_SKIN_WIDTH * LEGACY_SKIN_HEIGHT) {
+            throw new IllegalArgumentException("source array must hold a 64x32 skin texture");
+        }
+
+        target = checkTarget(target, SKIN_WIDTH, SKIN_HEIGHT);
+        convertToModernSkin(image, 0, LEGACY_SKIN_WIDTH, target, 0, SKIN_WIDTH);
+        return target;
+    }
+
     /**
      * This function converts a 64x32 skin (1.8 and earlier) into a modern (64x64) skin texture.
      * @param image the old skin
-     * @param target the new skin, or {@code null} if a new image should be created
+     * @param target the new skin, or {@code null} if a new image should be created. Every pixel is overwritten.
      * @return the new skin
      */
     public static BufferedImage convertToModernSkin(BufferedImage image, BufferedImage target) {
-        if (image.getWidth() != 64 || image.getHeight() != 32) {
+        if (image.getWidth() != LEGACY_SKIN_WIDTH || image.getHeight() != LEGACY_SKIN_HEIGHT) {
             throw new IllegalArgumentException("source image must be a 64x32 skin texture");
         }
 
         if (target == null) {
-            target = new BufferedImage(64, 64, BufferedImage.TYPE_INT_ARGB);
-        } else if (target.getWidth() != 64 || target.getHeight() != 64) {
+            target = new BufferedImage(SKIN_WIDTH, SKIN_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        } else if (target.getWidth() != SKIN_WIDTH || target.getHeight() != SKIN_HEIGHT) {
             throw new IllegalArgumentException("target image must be 64x64");
         }
 
-        Graphics2D g2d = target.createGraphics();
+        Pixels src = Pixels.read(image), dst = Pixels.write(target);
+        convertToModernSkin(src.data, src.offset, src.stride, dst.data, dst.offset, dst.stride);
+        dst.finish(target);
 
-        g2d.drawImage(image, 0, 0, 64, 32, null);
+        return target;
+    }
 
-        copyLimbFlipped(image.getSubimage(0, 16, 16, 16), target.getSubimage(16, 48, 16, 16));
-        copyLimbFlipped(image.getSubimage(40, 16, 16, 16), target.getSubimage(32, 48, 16, 16));
-        g2d.dispose();
+    /**
+     * This function converts an OptiFine cape texture into a regular cape texture.
+     * @param image the OptiFine cape texture, as 22 rows of 46 ARGB pixels
+     * @param target the array to place the cape texture into, or {@code null} if a new array should be created. The
+     *               first 64 * 32 pixels are overwritten.
+     * @return the regular cape texture, as 32 rows of 64 ARGB pixels
+     */
+    public static int[] convertOFToRegular(int[] image, int[] target) {
+        if (image.length < OPTIFINE_CAPE_WIDTH * OPTIFINE_CAPE_HEIGHT) {
+            throw new IllegalArgumentException("source array must hold a 46x22 OptiFine cape texture");
+        }
 
+        target = checkTarget(target, CAPE_WIDTH, CAPE_HEIGHT);
+        convertOFToRegular(image, 0, OPTIFINE_CAPE_WIDTH, target, 0, CAPE_WIDTH);
         return target;
     }
 
     /**
      * This function converts an OptiFine cape texture into a regular cape texture.
      * @param image the OptiFine cape texture
-     * @param target the image to place the cape texture into, or {@code null} if a new image should be created
+     * @param target the image to place the cape texture into, or {@code null} if a new image should be created. Every
+     *               pixel is overwritten.
      * @return the regular cape texture
      */
     public static BufferedImage convertOFToRegular(BufferedImage image, BufferedImage target) {
-        if (image.getWidth() != 46 || image.getHeight() != 22) {
+        if (image.getWidth() != OPTIFINE_CAPE_WIDTH || image.getHeight() != OPTIFINE_CAPE_HEIGHT) {
             throw new IllegalArgumentException("image must be a 46x22 OptiFine cape texture");
         }
 
         if (target == null) {
-            target = new BufferedImage(64, 32, BufferedImage.TYPE_INT_ARGB);
-        } else if (target.getWidth() != 64 || target.getHeight() != 32) {
+            target = new BufferedImage(CAPE_WIDTH, CAPE_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        } else if (target.getWidth() != CAPE_WIDTH || target.getHeight() != CAPE_HEIGHT) {
             throw new IllegalArgumentException("target image must be 64x32");
         }
 
-        Graphics2D g2d = target.createGraphics();
-        g2d.drawImage(image, 0, 0, 46, 22, null);
-        g2d.dispose();
+        Pixels src = Pixels.read(image), dst = Pixels.write(target);
+        convertOFToRegular(src.data, src.offset, src.stride, dst.data, dst.offset, dst.stride);
+        dst.finish(target);
 
         return target;
     }
+
+    /**
+     * Decodes a skin and makes it ready to render, as {@link SkinUtil#normalizeSkin(int[], int, int)} does.
+     * @param data the encoded image, decoded with {@link PngDecoder}
+     * @return the normalized skin
+     * @throws IOException if the image cannot be decoded
+     * @throws IllegalArgumentException if the image is not a skin
+     */
+    public static NormalizedSkin normalizeSkin(byte[] data) throws IOException {
+        PngDecoder.DecodedImage image = PngDecoder.decode(data);
+        return normalizeSkin(image.getPixels(), 0, image.getWidth(), image.getWidth(), image.getHeight());
+    }
+
+    /**
+     * Makes a skin ready to render, as {@link SkinUtil#normalizeSkin(int[], int, int)} does.
+     * @param image the skin
+     * @return the normalized skin
+     * @throws IllegalArgumentException if the image is not a skin
+     */
+    public static NormalizedSkin normalizeSkin(BufferedImage image) {
+        Pixels src = Pixels.read(image);
+        return normalizeSkin(src.data, src.offset, src.stride, image.getWidth(), image.getHeight());
+    }
+
+    /**
+     * Makes a skin ready to render. Legacy 64x32 skins are converted to 64x64 (see
+     * {@link SkinUtil#convertToModernSkin(int[], int[])}), and the head, body, arms and legs are made fully opaque, since
+     * the game ignores their transparency (only the layers over them may be transparent). Whether the skin is for the
+     * slim model is guessed from its arms: a 64x64 skin is slim if the two columns of the right arm which the slim model
+     * does not use are fully transparent. Legacy skins are never slim.
+     * @param pixels the skin, as rows of ARGB pixels. The array is not modified.
+     * @param width the width of the skin
+     * @param height the height of the skin
+     * @return the normalized skin
+     * @throws IllegalArgumentException if the image is not a 64x32 or 64x64 skin
+     */
+    public static NormalizedSkin normalizeSkin(int[] pixels, int width, int height) {
+        if (pixels.length < width * height) {
+            throw new IllegalArgumentException("pixels must hold width * height pixels");
+        }
+
+        return normalizeSkin(pixels, 0, width, width, height);
+    }
+
+    private static NormalizedSkin normalizeSkin(int[] src, int srcOff, int srcStride, int width, int height) {
+        int[] dst = new int[SKIN_WIDTH * SKIN_HEIGHT];
+        boolean legacy;
+
+        if (width == LEGACY_SKIN_WIDTH && height == LEGACY_SKIN_HEIGHT) {
+            convertToModernSkin(src, srcOff, srcStride, dst, 0, SKIN_WIDTH);
+            legacyHatTransparency(dst);
+
+            // everything is in dst now, so the loop below works on it in place
+            src = dst;
+            srcOff = 0;
+            srcStride = SKIN_WIDTH;
+            legacy = true;
+        } else if (width == SKIN_WIDTH && height == SKIN_HEIGHT) {
+            legacy = false;
+        } else {
+            throw new IllegalArgumentException("image must be a 64x32 or 64x64 skin texture");
+        }
+
+        boolean slim = !legacy;
+
+        for (int y = 0; y < SKIN_HEIGHT; ++y) {
+            int s = srcOff + y * srcStride, d = y * SKIN_WIDTH;
+
+            // x = 54 and 55 of the right arm's sides, front and back are only drawn by the normal model
+            if (y >= 20 && y < 32 && ((src[s + 54] | src[s + 55]) >>> 24) != 0) {
+                slim = false;
+            }
+
+            if (src != dst) {
+                System.arraycopy(src, s, dst, d, SKIN_WIDTH);
+            }
+
+            // the head, then the body, right arm and right leg, then the left leg and left arm
+            if (y < 16) {
+                setOpaque(dst, d, 32);
+            } else if (y < 32) {
+                setOpaque(dst, d, 64);
+            } else if (y >= 48) {
+                setOpaque(dst, d + 16, 32);
+            }
+        }
+
+        return new NormalizedSkin(new Texture(SKIN_WIDTH, SKIN_HEIGHT, dst), slim);
+    }
+
+    private static void setOpaque(int[] pixels, int off, int n) {
+        for (int i = off, max = off + n; i < max; ++i) {
+            pixels[i] |= 0xFF000000;
+        }
+    }
+
+    // legacy skins could not have a transparent hat, so the game treats a hat with no transparent pixels as no hat at all.
+    // like the game, this looks at the whole right half of the legacy skin, but only the hat needs clearing since the
+    // rest is made opaque anyway
+    private static void legacyHatTransparency(int[] pixels) {
+        for (int y = 0; y < 32; ++y) {
+            for (int x = 32, i = y * SKIN_WIDTH + x; x < 64; ++x, ++i) {
+                if ((pixels[i] >>> 24) < 128) return;
+            }
+        }
+
+        for (int y = 0; y < 16; ++y) {
+            for (int x = 32, i = y * SKIN_WIDTH + x; x < 64; ++x, ++i) {
+                pixels[i] &= 0x00FFFFFF;
+            }
+        }
+    }
+
+    /**
+     * Decodes a cape and makes it ready to render, as {@link SkinUtil#normalizeCape(BufferedImage)} does.
+     * @param data the encoded image, decoded with {@link PngDecoder}
+     * @return the cape texture
+     * @throws IOException if the image cannot be decoded
+     * @throws IllegalArgumentException if the image is not a cape
+     */
+    public static Texture normalizeCape(byte[] data) throws IOException {
+        PngDecoder.DecodedImage image = PngDecoder.decode(data);
+        return normalizeCape(image.getPixels(), 0, image.getWidth(), image.getWidth(), image.getHeight());
+    }
+
+    /**
+     * Makes a cape ready to render. OptiFine capes are converted to regular capes (see
+     * {@link SkinUtil#convertOFToRegular(int[], int[])}).
+     * @param image the cape
+     * @return the cape texture
+     * @throws IllegalArgumentException if the image is not a 64x32 cape or a 46x22 OptiFine cape
+     */
+    public static Texture normalizeCape(BufferedImage image) {
+        Pixels src = Pixels.read(image);
+        return normalizeCape(src.data, src.offset, src.stride, image.getWidth(), image.getHeight());
+    }
+
+    private static Texture normalizeCape(int[] src, int srcOff, int srcStride, int width, int height) {
+        int[] dst = new int[CAPE_WIDTH * CAPE_HEIGHT];
+
+        if (width == OPTIFINE_CAPE_WIDTH && height == OPTIFINE_CAPE_HEIGHT) {
+            convertOFToRegular(src, srcOff, srcStride, dst, 0, CAPE_WIDTH);
+        } else if (width == CAPE_WIDTH && height == CAPE_HEIGHT) {
+            for (int y = 0; y < CAPE_HEIGHT; ++y) {
+                System.arraycopy(src, srcOff + y * srcStride, dst, y * CAPE_WIDTH, CAPE_WIDTH);
+            }
+        } else {
+            throw new IllegalArgumentException("image must be a 64x32 cape or a 46x22 OptiFine cape texture");
+        }
+
+        return new Texture(CAPE_WIDTH, CAPE_HEIGHT, dst);
+    }
+
+    /**
+     * A skin made ready to render by {@link SkinUtil#normalizeSkin(int[], int, int)}.
+     */
+    @Getter
+    public static final class NormalizedSkin {
+        /**
+         * The 64x64 skin texture.
+         */
+        private final Texture texture;
+
+        /**
+         * Whether the skin looks like it is for the slim (Alex) model. See
+         * {@link PlayerModel#setNormalModel(boolean)}.
+         */
+        private final boolean slim;
+
+        private NormalizedSkin(Texture texture, boolean slim) {
+            this.texture = texture;
+            this.slim = slim;
+        }
+    }
+
+    // the ARGB pixels of an image: its own raster if it is int ARGB, otherwise a copy
+    private static class Pixels {
+        final int[] data;
+        final int offset, stride;
+        final boolean copy;
+
+        private Pixels(int[] data, int offset, int stride, boolean copy) {
+            this.data = data;
+            this.offset = offset;
+            this.stride = stride;
+            this.copy = copy;
+        }
+
+        private static Pixels inPlace(BufferedImage image) {
+            Raster raster = image.getRaster();
+
+            if (image.getType() == BufferedImage.TYPE_INT_ARGB && raster.getDataBuffer() instanceof DataBufferInt
+                    && raster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
+                SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel)raster.getSampleModel();
+                DataBufferInt buffer = (DataBufferInt)raster.getDataBuffer();
+                int stride = sm.getScanlineStride();
+
+                return new Pixels(buffer.getData(), buffer.getOffset() - raster.getSampleModelTranslateY() * stride
+                        - raster.getSampleModelTranslateX(), stride, false);
+            }
+
+            return null;
+        }
+
+        static Pixels read(BufferedImage image) {
+            Pixels pixels = inPlace(image);
+            if (pixels != null) return pixels;
+
+            int width = image.getWidth();
+            return new Pixels(image.getRGB(0, 0, width, image.getHeight(), null, 0, width), 0, width, true);
+        }
+
+        static Pixels write(BufferedImage image) {
+            Pixels pixels = inPlace(image);
+            if (pixels != null) return pixels;
+
+            return new Pixels(new int[image.getWidth() * image.getHeight()], 0, image.getWidth(), true);
+        }
+
+        void finish(BufferedImage image) {
+            if (copy) {
+                image.setRGB(0, 0, image.getWidth(), image.getHeight(), data, 0, stride);
+            }
+        }
+    }
 }
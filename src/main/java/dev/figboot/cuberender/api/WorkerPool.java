@@ -0,0 +1,101 @@
+package dev.figboot.cuberender.api;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed pool of daemon worker threads with a bounded queue, shared by {@link BatchRenderer} and
+ * {@link SkinConverter}. The number of tasks that can be queued or running at once is bounded, and
+ * {@link WorkerPool#submit(Callable)} blocks while that limit is reached, so a producer cannot outrun the workers.
+ */
+final class WorkerPool implements AutoCloseable {
+    private final ExecutorService executor;
+    private final Semaphore permits;
+
+    final int threads;
+
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * @param threads the number of worker threads
+     * @param queueCapacity the number of tasks that may wait for a worker before {@link WorkerPool#submit(Callable)}
+     *                      blocks
+     * @param threadName the name of the worker threads, which are numbered from 1
+     */
+    WorkerPool(int threads, int queueCapacity, String threadName) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+
+        if (queueCapacity < 0) {
+            throw new IllegalArgumentException("queueCapacity must not be negative");
+        }
+
+        this.threads = threads;
+        this.permits = new Semaphore(threads + queueCapacity);
+
+        AtomicInteger threadId = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, threadName + " #" + threadId.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Queues a task. This blocks if the queue is full.
+     * @return a future which is completed with the result of the task, or exceptionally with whatever it throws
+     * @throws InterruptedException if the thread is interrupted while waiting for room in the queue
+     */
+    <T> CompletableFuture<T> submit(Callable<T> task) throws InterruptedException {
+        permits.acquire();
+
+        CompletableFuture<T> future = new CompletableFuture<>();
+
+        try {
+            executor.execute(() -> {
+                try {
+                    T result = task.call();
+                    completed.increment();
+                    future.complete(result);
+                } catch (Throwable t) {
+                    failed.increment();
+                    future.completeExceptionally(t);
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            permits.release();
+            throw ex;
+        }
+
+        return future;
+    }
+
+    long getCompletedTasks() {
+        return completed.sum();
+    }
+
+    long getFailedTasks() {
+        return failed.sum();
+    }
+
+    /**
+     * Stops accepting tasks and waits for queued tasks to finish. If the thread is interrupted while waiting, this
+     * returns early with the thread's interrupt flag set, and the remaining tasks still finish in the background.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+
+        try {
+            //noinspection StatementWithEmptyBody
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -36,25 +36,25 @@ public class Matrix4f {
     }
 
     public Matrix4f times(Matrix4f right, Matrix4f target) {
-        float m00 = this.m00 * right.m00 + this.m01 * right.m10 + this.m02 * right.m20 + this.m03 * this.m30;
-        float m01 = this.m00 * right.m01 + this.m01 * right.m11 + this.m02 * right.m21 + this.m03 * this.m31;
-        float m02 = this.m00 * right.m02 + this.m01 * right.m12 + this.m02 * right.m22 + this.m03 * this.m32;
-        float m03 = this.m00 * right.m03 + this.m01 * right.m13 + this.m02 * right.m23 + this.m03 * this.m33;
-
-        float m10 = this.m10 * right.m00 + this.m11 * right.m10 + this.m12 * right.m20 + this.m13 * this.m30;
-        float m11 = this.m10 * right.m01 + this.m11 * right.m11 + this.m12 * right.m21 + this.m13 * this.m31;
-        float m12 = this.m10 * right.m02 + this.m11 * right.m12 + this.m12 * right.m22 + this.m13 * this.m32;
-        float m13 = this.m10 * right.m03 + this.m11 * right.m13 + this.m12 * right.m23 + this.m13 * this.m33;
-
-        float m20 = this.m20 * right.m00 + this.m21 * right.m10 + this.m22 * right.m20 + this.m23 * this.m30;
-        float m21 = this.m20 * right.m01 + this.m21 * right.m11 + this.m22 * right.m21 + this.m23 * this.m31;
-        float m22 = this.m20 * right.m02 + this.m21 * right.m12 + this.m22 * right.m22 + this.m23 * this.m32;
-        float m23 = this.m20 * right.m03 + this.m21 * right.m13 + this.m22 * right.m23 + this.m23 * this.m33;
-
-        float m30 = this.m30 * right.m00 + this.m31 * right.m10 + this.m32 * right.m20 + this.m33 * this.m30;
-        float m31 = this.m30 * right.m01 + this.m31 * right.m11 + this.m32 * right.m21 + this.m33 * this.m31;
-        float m32 = this.m30 * right.m02 + this.m31 * right.m12 + this.m32 * right.m22 + this.m33 * this.m32;
-        float m33 = this.m30 * right.m03 + this.m31 * right.m13 + this.m32 * right.m23 + this.m33 * this.m33;
+        float m00 = this.m00 * right.m00 + this.m01 * right.m10 + this.m02 * right.m20 + this.m03 * right.m30;
+        float m01 = this.m00 * right.m01 + this.m01 * right.m11 + this.m02 * right.m21 + this.m03 * right.m31;
+        float m02 = this.m00 * right.m02 + this.m01 * right.m12 + this.m02 * right.m22 + this.m03 * right.m32;
+        float m03 = this.m00 * right.m03 + this.m01 * right.m13 + this.m02 * right.m23 + this.m03 * right.m33;
+
+        float m10 = this.m10 * right.m00 + this.m11 * right.m10 + this.m12 * right.m20 + this.m13 * right.m30;
+        float m11 = this.m10 * right.m01 + this.m11 * right.m11 + this.m12 * right.m21 + this.m13 * right.m31;
+        float m12 = this.m10 * right.m02 + this.m11 * right.m12 + this.m12 * right.m22 + this.m13 * right.m32;
+        float m13 = this.m10 * right.m03 + this.m11 * right.m13 + this.m12 * right.m23 + this.m13 * right.m33;
+
+        float m20 = this.m20 * right.m00 + this.m21 * right.m10 + this.m22 * right.m20 + this.m23 * right.m30;
+        float m21 = this.m20 * right.m01 + this.m21 * right.m11 + this.m22 * right.m21 + this.m23 * right.m31;
+        float m22 = this.m20 * right.m02 + this.m21 * right.m12 + this.m22 * right.m22 + this.m23 * right.m32;
+        float m23 = this.m20 * right.m03 + this.m21 * right.m13 + this.m22 * right.m23 + this.m23 * right.m33;
+
+        float m30 = this.m30 * right.m00 + this.m31 * right.m10 + this.m32 * right.m20 + this.m33 * right.m30;
+        float m31 = this.m30 * right.m01 + this.m31 * right.m11 + this.m32 * right.m21 + this.m33 * right.m31;
+        float m32 = this.m30 * right.m02 + this.m31 * right.m12 + this.m32 * right.m22 + this.m33 * right.m32;
+        float m33 = this.m30 * right.m03 + this.m31 * right.m13 + this.m32 * right.m23 + this.m33 * right.m33;
 
         target.m00 = m00;
         target.m01 = m01;
@@ -97,6 +97,22 @@ public class Matrix4f {
         return target;
     }
 
+    /**
+     * Transforms packed points (x, y, z triples with an implicit w of 1) and stores the results in {@code out} as
+     * packed x, y, z, w components.
+     * @param in the points to transform
+     * @param out the array to store the results in (must have room for {@code in.length / 3 * 4} floats)
+     */
+    public void transformPoints(float[] in, float[] out) {
+        for (int i = 0, o = 0; i < in.length; i += 3, o += 4) {
+            float x = in[i], y = in[i + 1], z = in[i + 2];
+            out[o] = x * m00 + y * m01 + z * m02 + m03;
+            out[o + 1] = x * m10 + y * m11 + z * m12 + m13;
+            out[o + 2] = x * m20 + y * m21 + z * m22 + m23;
+            out[o + 3] = x * m30 + y * m31 + z * m32 + m33;
+        }
+    }
+
     public static Matrix4f scale(float factor) {
         return scale(factor, factor, factor);
     }
@@ -117,6 +133,31 @@ public class Matrix4f {
         return mat;
     }
 
+    /**
+     * Creates a perspective projection for a camera at the origin looking down the -Z axis (Y points down, like the
+     * rest of this renderer).
+     * <p>After dividing by w, z is 1 at the near plane and 0 at the far plane, so closer points have greater depth.
+     * Points in front of the near plane have z greater than w.</p>
+     * @param fovY the vertical field of view, in radians
+     * @param aspect the aspect ratio (width / height) of the viewport
+     * @param near the distance to the near plane (must be positive)
+     * @param far the distance to the far plane (must be greater than {@code near})
+     */
+    public static Matrix4f perspective(float fovY, float aspect, float near, float far) {
+        if (near <= 0 || far <= near) {
+            throw new IllegalArgumentException("must have 0 < near < far");
+        }
+
+        float f = 1 / (float)Math.tan(fovY / 2);
+        float depthScale = near / (far - near);
+
+        return new Matrix4f(
+                f / aspect, 0,          0,                0,
+                         0, f,          0,                0,
+                         0, 0, depthScale, depthScale * far,
+                         0, 0,         -1,                0);
+    }
+
     public static Matrix4f rotateX(float rad) {
         float cos = (float)Math.cos(rad);
         float sin = (float)Math.sin(rad);
@@ -0,0 +1,73 @@
+package dev.figboot.cuberender.state;
+
+import lombok.Getter;
+
+/**
+ * The anti-aliasing mode of a {@link Framebuffer}. Anti-aliased framebuffers render into internal sample buffers
+ * which are box-filtered down into the output image when it is read.
+ */
+public enum AntiAliasMode {
+    /**
+     * One sample per pixel.
+     */
+    NONE(1),
+
+    /**
+     * Renders at twice the output resolution on each axis (4 shaded samples per pixel).
+     */
+    SSAA_2X2(2),
+
+    /**
+     * Renders at four times the output resolution on each axis (16 shaded samples per pixel).
+     */
+    SSAA_4X4(4),
+
+    /**
+     * 4 coverage and depth samples per pixel, with the color shaded once per pixel per triangle.
+     */
+    MSAA_4X(new float[] { -2, 6, -6, 2 }, new float[] { -6, -2, 2, 6 }),
+
+    /**
+     * 8 coverage and depth samples per pixel, with the color shaded once per pixel per triangle.
+     */
+    MSAA_8X(new float[] { 1, -1, 5, -3, -5, -7, 3, 7 }, new float[] { -3, 3, 1, -5, 5, -1, 7, -7 });
+
+    /**
+     * The factor the output width and height are multiplied by to get the resolution that is rasterized.
+     */
+    @Getter private final int scale;
+
+    /**
+     * The number of coverage samples stored for each rasterized pixel.
+     */
+    @Getter private final int samples;
+
+    // sample offsets from the pixel's sample point, in pixels (only used for multisampling)
+    final float[] sampleX, sampleY;
+
+    AntiAliasMode(int scale) {
+        this.scale = scale;
+        this.samples = 1;
+        this.sampleX = this.sampleY = null;
+    }
+
+    // offsets are given in sixteenths of a pixel, in the usual rotated-grid patterns
+    AntiAliasMode(float[] sampleX, float[] sampleY) {
+        this.scale = 1;
+        this.samples = sampleX.length;
+        this.sampleX = sampleX;
+        this.sampleY = sampleY;
+
+        for (int i = 0; i < samples; ++i) {
+            sampleX[i] /= 16;
+            sampleY[i] /= 16;
+        }
+    }
+
+    /**
+     * @return the number of rendered samples per output pixel
+     */
+    public int getSamplesPerPixel() {
+        return scale * scale * samples;
+    }
+}
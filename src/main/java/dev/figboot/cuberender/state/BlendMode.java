@@ -7,14 +7,14 @@ import lombok.RequiredArgsConstructor;
 @RequiredArgsConstructor
 @Getter
 public enum BlendMode {
-    DISABLE((inOutColor, prev) -> inOutColor.w = 1),
+    DISABLE((inOutColor, prev) -> inOutColor.w = 1, (src, dst) -> src | 0xFF000000, false),
     BINARY((inOutColor, prev) -> {
         if (inOutColor.w < 0.5) {
             inOutColor.copyFrom(prev);
         } else {
             inOutColor.w = 1;
         }
-    }),
+    }, (src, dst) -> (src >>> 24) < 128 ? dst : src | 0xFF000000, false),
     BLEND_OVER((inOutColor, prev) -> {
         float pAlphaFactor = prev.w * (1 - inOutColor.w);
         float aOut = inOutColor.w + pAlphaFactor;
@@ -23,11 +23,34 @@ public enum BlendMode {
         inOutColor.y = (inOutColor.y * inOutColor.w + prev.y * pAlphaFactor) / aOut;
         inOutColor.z = (inOutColor.z * inOutColor.w + prev.z * pAlphaFactor) / aOut;
         inOutColor.w = aOut;
-    });
+    }, PackedColor::blendOver, true);
 
     private final BlendFunction function;
 
+    /**
+     * The same blend in 8-bit fixed point. Meshes are drawn with this, while other {@link Sampleable}s use
+     * {@link BlendMode#getFunction()}. The results are within a step or two of each other in each channel.
+     */
+    private final IntBlendFunction intFunction;
+
+    /**
+     * Whether {@link BlendMode#getIntFunction()} takes premultiplied colors. Modes which only use alpha as a cutoff
+     * take straight colors instead, so that the color of a texel is kept even where its alpha is low or zero.
+     */
+    private final boolean premultiplied;
+
     public interface BlendFunction {
         void blend(Vector4f inOutColor, Vector4f prev);
     }
+
+    public interface IntBlendFunction {
+        /**
+         * Blends a color into the framebuffer.
+         * @param src the new color as ARGB, premultiplied if {@link BlendMode#isPremultiplied()} is true and straight
+         *            otherwise
+         * @param dst the color in the framebuffer as straight (not premultiplied) ARGB
+         * @return the color to store in the framebuffer as straight ARGB
+         */
+        int blend(int src, int dst);
+    }
 }
@@ -0,0 +1,36 @@
+package dev.figboot.cuberender.state;
+
+import lombok.Getter;
+
+/**
+ * How a {@link Framebuffer} stores depth.
+ * <p>The fixed-point formats cover depths from -1 to 1 (the whole view in the default orthographic projection, and
+ * everything between the near and far planes with a perspective projection). Depths outside of that range are clamped.
+ * They are plenty for a single player model, but {@link DepthFormat#FIXED16} is coarse for perspective projections,
+ * which spend most of their depth range close to the near plane.</p>
+ */
+public enum DepthFormat {
+    /**
+     * 32-bit floating point depth, 4 bytes per sample.
+     */
+    FLOAT32(32),
+
+    /**
+     * 16-bit fixed-point depth, 2 bytes per sample.
+     */
+    FIXED16(16),
+
+    /**
+     * 24-bit fixed-point depth, 4 bytes per sample.
+     */
+    FIXED24(24);
+
+    /**
+     * The number of bits of depth stored per sample.
+     */
+    @Getter private final int bits;
+
+    DepthFormat(int bits) {
+        this.bits = bits;
+    }
+}
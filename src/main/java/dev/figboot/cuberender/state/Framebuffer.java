@@ -5,9 +5,13 @@ import dev.figboot.cuberender.math.Vector4f;
 import lombok.Getter;
 import lombok.Setter;
 
-import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 public class Framebuffer {
     public static final int FB_CLEAR_COLOR = 0x01;
@@ -17,39 +21,308 @@ public class Framebuffer {
     public static final int FB_DEPTH_COMMIT = 0x02;
     public static final int FB_DEPTH_COMMIT_TRANSPARENT = 0x04;
 
+    /**
+     * Width and height (in pixels) of the screen tiles used by the tiled renderer.
+     */
+    public static final int TILE_SIZE = 64;
+
+    /**
+     * Width and height (in rasterized pixels) of the blocks of the coarse depth buffer. Triangles are tested against
+     * the farthest depth in each block before they are rasterized in it, and skip blocks where they are entirely hidden.
+     */
+    public static final int DEPTH_BLOCK_SIZE = 8;
+
+    // slack for the difference between a triangle's depth plane and the stepped depths the rasterizer computes
+    private static final float DEPTH_BLOCK_EPSILON = 1e-4f;
+
+    // single-sampled triangles are rasterized with their vertices snapped to 1/256 of a pixel, so that the edge
+    // functions are exact integers and come out the same whether they are stepped or evaluated at each pixel
+    private static final int SUBPIXEL_BITS = 8;
+
+    // vertices further off-screen than this (which only happens close to the near plane) would overflow the fixed-point
+    // edge functions, so their triangles fall back to evaluating floating-point weights at every pixel
+    private static final float FIXED_POINT_LIMIT = 1 << 20;
+
     @Getter private final int width, height;
 
-    @Getter private final BufferedImage color;
+    /**
+     * The anti-aliasing mode this framebuffer was created with.
+     */
+    @Getter private final AntiAliasMode antiAliasMode;
+
+    /**
+     * The depth format this framebuffer was created with.
+     */
+    @Getter private final DepthFormat depthFormat;
+
+    // the resolution triangles are rasterized at, and the number of color and depth samples kept for each rasterized pixel
+    private final int rasterWidth, rasterHeight, samples;
+    private final float[] sampleX, sampleY;
+
+    private final BufferedImage color;
+    private final int[] outputData;
+
+    // the samples that are rendered into. without anti-aliasing, this is the backing array of the output image
+    private final int[] colorData;
+
+    // only the array for the depth format is allocated. fixed-point depths are offset by 1 so that 0 is the cleared depth
     private final float[] depth;
+    private final short[] depth16;
+    private final int[] depth24;
+    private final int depthMax;
+    private final float depthScale;
+
+    // for each depth block, a lower bound on the depth of every sample in it. it is raised whenever a triangle covers
+    // the whole block, which is cheaper than keeping the exact minimum
+    private final int blocksX, blocksY;
+    private final float[] blockMinDepth;
+
+    // the last triangle tested against each block and whether it was rejected, so a triangle only tests each block once
+    // instead of once per row
+    private final int[] blockTestedBy;
+    private final boolean[] blockRejected;
+    private int nextTriangleId;
+
+    // true if the samples have been drawn to since they were last resolved into the output image
+    private boolean resolveDirty;
 
     @Setter private int depthMode = FB_DEPTH_USE | FB_DEPTH_COMMIT;
 
     @Setter private Matrix4f transform;
 
+    /**
+     * The projection applied after {@link Framebuffer#transform}, or {@code null} for the default orthographic view.
+     * With a projection, positions are divided by w, attributes are interpolated perspective-correctly, triangles are
+     * clipped against the near plane, and back faces are culled by their winding order.
+     * <p>Projected depth must decrease with distance and reach z = w at the near plane, like
+     * {@link Matrix4f#perspective(float, float, float, float)} produces.</p>
+     */
+    @Setter private Matrix4f projection;
+    private final Matrix4f clipTransform = new Matrix4f();
+
     @Setter private BlendMode blendMode = BlendMode.DISABLE;
     @Setter private boolean cullBackFace = true;
 
+    /**
+     * If true, triangles are rasterized with the old per-pixel floating-point barycentric evaluation instead of the
+     * incremental edge-function rasterizer. This is slow and only exists to compare the output of the two paths. They
+     * are not bit-identical: the incremental rasterizer snaps vertices to 1/256 of a pixel, which moves the edges of a
+     * triangle by up to 1/512 of a pixel. Pixels which lie that close to an edge (usually a few dozen in a render) may
+     * be covered by a different triangle, and may be shaded with slightly different weights.
+     */
+    @Setter private boolean referenceRasterizer = false;
+
+    /**
+     * If non-null, the framebuffer renders in tiled mode. Triangles are transformed when they are drawn, but instead of
+     * being rasterized immediately they are binned into {@link Framebuffer#TILE_SIZE}-sized screen tiles. The tiles
+     * are rasterized in parallel on this executor when {@link Framebuffer#flush()} is called. Each tile only touches
+     * its own part of the color and depth buffers, and triangles are drawn in submission order within a tile.
+     */
+    @Getter private Executor tileExecutor;
+
+    /**
+     * If true, {@link Framebuffer#clear(int, int)} only records the clear. Each {@link Framebuffer#TILE_SIZE}-sized tile
+     * is cleared right before a triangle is first drawn in it, and the tiles that were never drawn in are filled in when
+     * the image is read with {@link Framebuffer#getColor()}. A player model covers only a small part of most
+     * framebuffers, so this skips most of the work of clearing.
+     */
+    @Getter @Setter private boolean lazyClear;
+
+    /**
+     * If true, triangles drawn with {@link BlendMode#BLEND_OVER} are not rasterized straight away. They are kept until
+     * the next {@link Framebuffer#flush()} (which {@link Framebuffer#getColor()} and {@link Framebuffer#clear(int, int)}
+     * also do), then sorted back to front by the depth of their centers and rasterized after everything else drawn
+     * since the last flush. Blending depends on the order triangles are drawn in, so this blends overlapping
+     * translucent triangles correctly no matter which order they were drawn in, as long as they do not intersect.
+     */
+    @Getter @Setter private boolean depthSortTranslucent;
+
+    // every lazy clear starts a new generation. a tile is up to date if it was last cleared in the current generation
+    private long colorGeneration, depthGeneration;
+    private final long[] tileColorGeneration, tileDepthGeneration;
+    private int lazyClearColor;
+
+    // per-draw scratch state for the immediate (non-tiled) path
+    private final Triangle scratchTriangle = new Triangle();
+    private final Vector4f scratchOutColor = new Vector4f(), scratchPrevColor = new Vector4f(), scratchBlendColor = new Vector4f();
+    private final Span scratchSpan = new Span();
+
+    // screen-space x, y, z and w of each vertex, and the normalized normal of each triangle, of the mesh being drawn
+    private float[] vertexCache = new float[0];
+    private float[] normalCache = new float[0];
+
+    // clip-space positions of each vertex when there is a projection, and scratch polygons for near-plane clipping
+    private float[] clipCache = new float[0];
+    private final float[] clipInput = new float[3 * 7], clipOutput = new float[4 * 7];
+
+    private final int tilesX, tilesY;
+    private final List<Triangle> binnedTriangles = new ArrayList<>();
+    private int nBinnedTriangles;
+    private int[][] tileBins;
+    private int[] tileBinSizes;
+
+    // translucent triangles waiting to be sorted, see depthSortTranslucent
+    private final List<Triangle> deferredTriangles = new ArrayList<>();
+    private int nDeferredTriangles;
+    private final DepthSort depthSort = new DepthSort();
+
     public Framebuffer(int width, int height) {
+        this(width, height, AntiAliasMode.NONE);
+    }
+
+    /**
+     * Creates a framebuffer which renders with anti-aliasing. The color and depth buffers hold every sample, so an
+     * anti-aliased framebuffer takes {@link AntiAliasMode#getSamplesPerPixel()} times the memory of a regular one.
+     * @param width the width of the output image
+     * @param height the height of the output image
+     * @param antiAliasMode the anti-aliasing mode
+     */
+    public Framebuffer(int width, int height, AntiAliasMode antiAliasMode) {
+        this(width, height, antiAliasMode, DepthFormat.FLOAT32);
+    }
+
+    /**
+     * Creates a framebuffer with a specific depth format. The fixed-point formats only cover depths from -1 to 1, see
+     * {@link DepthFormat}.
+     * @param width the width of the output image
+     * @param height the height of the output image
+     * @param antiAliasMode the anti-aliasing mode
+     * @param depthFormat the depth format
+     */
+    public Framebuffer(int width, int height, AntiAliasMode antiAliasMode, DepthFormat depthFormat) {
         this.width = width;
         this.height = height;
+        this.antiAliasMode = antiAliasMode;
+        this.depthFormat = depthFormat;
 
         this.color = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        depth = new float[width * height];
+
+        // grab the backing array once so the raster path never goes through the ColorModel
+        outputData = ((DataBufferInt)this.color.getRaster().getDataBuffer()).getData();
+
+        rasterWidth = width * antiAliasMode.getScale();
+        rasterHeight = height * antiAliasMode.getScale();
+        samples = antiAliasMode.getSamples();
+        sampleX = antiAliasMode.sampleX;
+        sampleY = antiAliasMode.sampleY;
+
+        colorData = antiAliasMode == AntiAliasMode.NONE ? outputData : new int[rasterWidth * rasterHeight * samples];
+        int nDepth = rasterWidth * rasterHeight * samples;
+        depth = depthFormat == DepthFormat.FLOAT32 ? new float[nDepth] : null;
+        depth16 = depthFormat == DepthFormat.FIXED16 ? new short[nDepth] : null;
+        depth24 = depthFormat == DepthFormat.FIXED24 ? new int[nDepth] : null;
+        depthMax = (1 << depthFormat.getBits()) - 1; // unused for floats
+        depthScale = (depthMax - 1) / 2f;
+
+        blocksX = (rasterWidth + DEPTH_BLOCK_SIZE - 1) / DEPTH_BLOCK_SIZE;
+        blocksY = (rasterHeight + DEPTH_BLOCK_SIZE - 1) / DEPTH_BLOCK_SIZE;
+        blockMinDepth = new float[blocksX * blocksY];
+        blockTestedBy = new int[blocksX * blocksY];
+        blockRejected = new boolean[blocksX * blocksY];
+        Arrays.fill(blockMinDepth, Float.NEGATIVE_INFINITY);
+
+        tilesX = (rasterWidth + TILE_SIZE - 1) / TILE_SIZE;
+        tilesY = (rasterHeight + TILE_SIZE - 1) / TILE_SIZE;
+        tileColorGeneration = new long[tilesX * tilesY];
+        tileDepthGeneration = new long[tilesX * tilesY];
+    }
+
+    /**
+     * Gets the output image. Binned triangles are flushed first, and if the framebuffer is anti-aliased, anything drawn
+     * since the last call is resolved into the image. Tiles still waiting on a lazy clear are filled in.
+     * @return the output image
+     */
+    public BufferedImage getColor() {
+        flush();
+
+        if (resolveDirty) {
+            resolve();
+            resolveDirty = false;
+        }
+
+        return color;
+    }
+
+    /**
+     * Sets the executor used for tiled rendering, or {@code null} to rasterize triangles as soon as they are drawn.
+     * Any triangles still binned under the previous executor are flushed first.
+     * @param executor the executor to rasterize tiles on (for example {@link java.util.concurrent.ForkJoinPool#commonPool()})
+     * @see Framebuffer#tileExecutor
+     */
+    public void setTileExecutor(Executor executor) {
+        flush();
+        this.tileExecutor = executor;
+
+        if (executor != null && tileBins == null) {
+            tileBins = new int[tilesX * tilesY][16];
+            tileBinSizes = new int[tilesX * tilesY];
+        }
     }
 
     public void clear(int bits, int color) {
+        flush();
+        resolveDirty = colorData != outputData;
+
         if ((bits & FB_CLEAR_COLOR) != 0) {
-            Graphics gfx = this.color.getGraphics();
-            gfx.setColor(new Color(color, true));
-            gfx.fillRect(0, 0, width, height);
+            if (lazyClear) {
+                ++colorGeneration;
+                lazyClearColor = color;
+
+                // the output image has to be filled in on the next read, even without anti-aliasing
+                resolveDirty = true;
+            } else {
+                Arrays.fill(colorData, color);
+                Arrays.fill(tileColorGeneration, colorGeneration);
+            }
         }
 
         if ((bits & FB_CLEAR_DEPTH) != 0) {
-            Arrays.fill(depth, Float.NEGATIVE_INFINITY);
+            if (lazyClear) {
+                ++depthGeneration;
+            } else {
+                if (depth != null) Arrays.fill(depth, Float.NEGATIVE_INFINITY);
+                else if (depth16 != null) Arrays.fill(depth16, (short)0);
+                else Arrays.fill(depth24, 0);
+
+                Arrays.fill(tileDepthGeneration, depthGeneration);
+            }
+
+            Arrays.fill(blockMinDepth, Float.NEGATIVE_INFINITY);
+        }
+    }
+
+    // carries out any lazy clears still pending on a tile, before it is drawn in
+    private void prepareTile(int tile) {
+        boolean clearColor = tileColorGeneration[tile] != colorGeneration;
+        boolean clearDepth = tileDepthGeneration[tile] != depthGeneration;
+        if (!clearColor && !clearDepth) return;
+
+        int tx = tile % tilesX, ty = tile / tilesX;
+        int minX = tx * TILE_SIZE, maxX = Math.min(rasterWidth, minX + TILE_SIZE);
+        int minY = ty * TILE_SIZE, maxY = Math.min(rasterHeight, minY + TILE_SIZE);
+
+        for (int y = minY; y < maxY; ++y) {
+            int from = (y * rasterWidth + minX) * samples, to = (y * rasterWidth + maxX) * samples;
+
+            if (clearColor) {
+                Arrays.fill(colorData, from, to, lazyClearColor);
+            }
+
+            if (clearDepth) {
+                if (depth != null) Arrays.fill(depth, from, to, Float.NEGATIVE_INFINITY);
+                else if (depth16 != null) Arrays.fill(depth16, from, to, (short)0);
+                else Arrays.fill(depth24, from, to, 0);
+            }
         }
+
+        tileColorGeneration[tile] = colorGeneration;
+        tileDepthGeneration[tile] = depthGeneration;
     }
 
-    public void drawMesh(Mesh<?> mesh) {
+    public void drawMesh(Mesh mesh) {
+        if (colorData != outputData) resolveDirty = true;
+        transformMesh(mesh);
+
         // this seems redundant but it saves us having to check it each loop iteration
         if (mesh.indices != null) {
             drawIndexedMesh(mesh);
@@ -58,105 +331,1023 @@ public class Framebuffer {
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private void drawIndexedMesh(Mesh<?> mesh) {
-        int ntris = mesh.indices.length / 3;
-        Sampleable<Object> s = (Sampleable<Object>)mesh;
+    /**
+     * Rasterizes all triangles binned since the last flush, and any translucent triangles waiting to be sorted (see
+     * {@link Framebuffer#setDepthSortTranslucent(boolean)}). Otherwise, this does nothing if the framebuffer is not in
+     * tiled mode. The caller blocks until every tile has been rasterized.
+     */
+    public void flush() {
+        if (nDeferredTriangles != 0) drawDeferredTriangles();
+        if (nBinnedTriangles == 0) return;
 
-        int i0, i1, i2;
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
 
-        for (int tri = 0; tri < ntris; ++tri) {
-            i0 = mesh.indices[tri * 3];
-            i1 = mesh.indices[tri * 3 + 1];
-            i2 = mesh.indices[tri * 3 + 2];
+        for (int ty = 0; ty < tilesY; ++ty) {
+            for (int tx = 0; tx < tilesX; ++tx) {
+                int tile = ty * tilesX + tx;
+                if (tileBinSizes[tile] == 0) continue;
+
+                int minX = tx * TILE_SIZE, minY = ty * TILE_SIZE;
+                int maxX = Math.min(rasterWidth, minX + TILE_SIZE), maxY = Math.min(rasterHeight, minY + TILE_SIZE);
 
-            Vector4f vert0 = mesh.vertices[i0];
-            Vector4f vert1 = mesh.vertices[i1];
-            Vector4f vert2 = mesh.vertices[i2];
+                futures.add(CompletableFuture.runAsync(() -> drawTile(tile, minX, minY, maxX, maxY), tileExecutor));
+            }
+        }
 
-            drawTriangle(vert0, vert1, vert2, mesh.normals[tri], s, i0, i1, i2);
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        } finally {
+            Arrays.fill(tileBinSizes, 0);
+            nBinnedTriangles = 0;
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private void drawFlatMesh(Mesh<?> mesh) {
-        int ntris = mesh.vertices.length / 3;
-        Sampleable<Object> s = (Sampleable<Object>)mesh;
+    private void drawTile(int tile, int minX, int minY, int maxX, int maxY) {
+        Vector4f outColor = new Vector4f(), prevColor = new Vector4f(), blendColor = new Vector4f();
+        Span span = new Span();
+        int[] bin = tileBins[tile];
 
-        int i0, i1, i2;
+        prepareTile(tile);
+
+        for (int i = 0, max = tileBinSizes[tile]; i < max; ++i) {
+            rasterize(binnedTriangles.get(bin[i]), minX, minY, maxX, maxY, outColor, prevColor, blendColor, span);
+        }
+    }
+
+    private void drawDeferredTriangles() {
+        int n = nDeferredTriangles;
+        int[] order = depthSort.sort(n);
+        nDeferredTriangles = 0;
+
+        for (int i = 0; i < n; ++i) {
+            int idx = order[i];
+            Triangle tri = deferredTriangles.get(idx);
+
+            if (tileExecutor != null) {
+                // bins refer to triangles by their index in binnedTriangles, so trade places with the record there
+                if (nBinnedTriangles == binnedTriangles.size()) {
+                    binnedTriangles.add(tri);
+                    deferredTriangles.set(idx, new Triangle());
+                } else {
+                    deferredTriangles.set(idx, binnedTriangles.set(nBinnedTriangles, tri));
+                }
+            }
+
+            rasterizeOrBin(tri);
+        }
+    }
+
+    // rasterizes a set up triangle now, or bins it in tiled mode
+    private void rasterizeOrBin(Triangle tri) {
+        if (tileExecutor != null) {
+            binTriangle(tri);
+        } else {
+            for (int ty = tri.minY / TILE_SIZE, tyMax = tri.maxY / TILE_SIZE; ty <= tyMax; ++ty) {
+                for (int tx = tri.minX / TILE_SIZE, txMax = tri.maxX / TILE_SIZE; tx <= txMax; ++tx) {
+                    prepareTile(ty * tilesX + tx);
+                }
+            }
+
+            rasterize(tri, 0, 0, rasterWidth, rasterHeight, scratchOutColor, scratchPrevColor, scratchBlendColor, scratchSpan);
+        }
+    }
+
+    private void binTriangle(Triangle tri) {
+        int idx = nBinnedTriangles++;
+
+        int tMinX = tri.minX / TILE_SIZE, tMaxX = Math.min(tilesX - 1, tri.maxX / TILE_SIZE);
+        int tMinY = tri.minY / TILE_SIZE, tMaxY = Math.min(tilesY - 1, tri.maxY / TILE_SIZE);
+
+        for (int ty = tMinY; ty <= tMaxY; ++ty) {
+            for (int tx = tMinX; tx <= tMaxX; ++tx) {
+                int tile = ty * tilesX + tx;
+                int[] bin = tileBins[tile];
+
+                if (tileBinSizes[tile] == bin.length) {
+                    tileBins[tile] = bin = Arrays.copyOf(bin, bin.length * 2);
+                }
+
+                bin[tileBinSizes[tile]++] = idx;
+            }
+        }
+    }
+
+    // transforms every vertex and normal of the mesh exactly once into the vertex and normal caches
+    private void transformMesh(Mesh mesh) {
+        int nverts = mesh.vertexCount(), nnorms = mesh.normals.length / 3;
+
+        if (vertexCache.length < nverts * 4) {
+            vertexCache = new float[nverts * 4];
+        }
+
+        if (normalCache.length < nnorms * 3) {
+            normalCache = new float[nnorms * 3];
+        }
+
+        if (projection == null) {
+            transform.transformPoints(mesh.positions, vertexCache);
+
+            // vertex positions go straight to screen space, we only ever need them there (w is always 1)
+            for (int i = 0, max = nverts * 4; i < max; i += 4) {
+                vertexCache[i] = logToScrX(vertexCache[i]);
+                vertexCache[i + 1] = logToScrY(vertexCache[i + 1]);
+            }
+        } else {
+            if (clipCache.length < nverts * 4) {
+                clipCache = new float[nverts * 4];
+            }
+
+            projection.times(transform, clipTransform).transformPoints(mesh.positions, clipCache);
+
+            // the clip-space positions are kept around for triangles that cross the near plane, the rest are divided by w
+            for (int i = 0, max = nverts * 4; i < max; i += 4) {
+                float w = clipCache[i + 3];
+                if (clipCache[i + 2] > w) continue; // in front of the near plane, handled by clipping
+
+                float invW = 1 / w;
+                vertexCache[i] = logToScrX(clipCache[i] * invW);
+                vertexCache[i + 1] = logToScrY(clipCache[i + 1] * invW);
+                vertexCache[i + 2] = clipCache[i + 2] * invW;
+                vertexCache[i + 3] = invW;
+            }
+        }
+
+        Matrix4f m = transform;
+        float[] normals = mesh.normals;
+        for (int i = 0; i < nnorms; ++i) {
+            float nx = normals[i * 3], ny = normals[i * 3 + 1], nz = normals[i * 3 + 2];
+
+            // normals have w = 0, so the translation part of the matrix does not apply
+            float x = nx * m.m00 + ny * m.m01 + nz * m.m02;
+            float y = nx * m.m10 + ny * m.m11 + nz * m.m12;
+            float z = nx * m.m20 + ny * m.m21 + nz * m.m22;
+            float invLen = 1 / (float)Math.sqrt(x * x + y * y + z * z);
+
+            normalCache[i * 3] = x * invLen;
+            normalCache[i * 3 + 1] = y * invLen;
+            normalCache[i * 3 + 2] = z * invLen;
+        }
+    }
+
+    private void drawIndexedMesh(Mesh mesh) {
+        int ntris = mesh.triangleCount();
+        int[] indices = mesh.indices;
 
         for (int tri = 0; tri < ntris; ++tri) {
-            i0 = tri * 3;
-            i1 = tri * 3 + 1;
-            i2 = tri * 3 + 2;
+            drawTriangle(tri, mesh, indices[tri * 3], indices[tri * 3 + 1], indices[tri * 3 + 2]);
+        }
+    }
 
-            Vector4f vert0 = mesh.vertices[i0];
-            Vector4f vert1 = mesh.vertices[i1];
-            Vector4f vert2 = mesh.vertices[i2];
+    private void drawFlatMesh(Mesh mesh) {
+        int ntris = mesh.triangleCount();
 
-            drawTriangle(vert0, vert1, vert2, mesh.normals[tri], s, i0, i1, i2);
+        for (int tri = 0; tri < ntris; ++tri) {
+            drawTriangle(tri, mesh, tri * 3, tri * 3 + 1, tri * 3 + 2);
         }
     }
 
     private float logToScrX(float x) {
-        return ((x + 1f) / 2) * width;
+        return ((x + 1f) / 2) * rasterWidth;
     }
 
     private float logToScrY(float y) {
-        return ((y + 1f) / 2) * height;
+        return ((y + 1f) / 2) * rasterHeight;
     }
 
     // triangles have flat normals (we don't need anything more than that in this renderer and it saves us the trouble of interpolating between 3 normal vectors)
-    private void drawTriangle(Vector4f vert0, Vector4f vert1, Vector4f vert2, Vector4f normal, Sampleable<Object> sampleable, int i0, int i1, int i2) {
-        Vector4f outColor = new Vector4f(), prevColor = new Vector4f();
+    private void drawTriangle(int triIdx, Sampleable sampleable, int i0, int i1, int i2) {
+        if (projection == null) {
+            if (cullBackFace && normalCache[triIdx * 3 + 2] < 0) {
+                return;
+            }
+        } else {
+            // vertices in front of the near plane (z > w after projection) need to be clipped away
+            float[] cc = clipCache;
+            boolean in0 = cc[i0 * 4 + 2] <= cc[i0 * 4 + 3];
+            boolean in1 = cc[i1 * 4 + 2] <= cc[i1 * 4 + 3];
+            boolean in2 = cc[i2 * 4 + 2] <= cc[i2 * 4 + 3];
 
-        vert0 = transform.transform(vert0);
-        vert1 = transform.transform(vert1);
-        vert2 = transform.transform(vert2);
-        normal = transform.transform(normal).normalize();
+            if (!in0 || !in1 || !in2) {
+                if (in0 || in1 || in2) {
+                    drawClippedTriangle(triIdx, sampleable, i0, i1, i2);
+                }
+                return;
+            }
+        }
 
-        if (cullBackFace && normal.z < 0) {
-            return;
+        setupTriangle(triIdx, sampleable, i0, i1, i2, vertexCache, i0 * 4, i1 * 4, i2 * 4, false);
+    }
+
+    private void drawClippedTriangle(int triIdx, Sampleable sampleable, int i0, int i1, int i2) {
+        float[] in = clipInput, out = clipOutput;
+
+        // each vertex is clip-space x, y, z, w followed by its barycentric weights in the original triangle
+        loadClipVertex(in, 0, i0, 1, 0, 0);
+        loadClipVertex(in, 7, i1, 0, 1, 0);
+        loadClipVertex(in, 14, i2, 0, 0, 1);
+
+        // Sutherland-Hodgman against the near plane (w - z >= 0); a triangle clipped by one plane has at most 4 vertices
+        int nOut = 0;
+        for (int a = 0; a < 3; ++a) {
+            int b = (a + 1) % 3;
+            int ao = a * 7, bo = b * 7;
+
+            float da = in[ao + 3] - in[ao + 2], db = in[bo + 3] - in[bo + 2];
+
+            if (da >= 0) {
+                System.arraycopy(in, ao, out, nOut++ * 7, 7);
+            }
+
+            if ((da >= 0) != (db >= 0)) {
+                float t = da / (da - db);
+                int oo = nOut++ * 7;
+
+                for (int c = 0; c < 7; ++c) {
+                    out[oo + c] = in[ao + c] + (in[bo + c] - in[ao + c]) * t;
+                }
+            }
         }
 
-        float sx0 = logToScrX(vert0.x), sy0 = logToScrY(vert0.y);
-        float sx1 = logToScrX(vert1.x), sy1 = logToScrY(vert1.y);
-        float sx2 = logToScrX(vert2.x), sy2 = logToScrY(vert2.y);
+        // project the new polygon, keeping the barycentric weights after the screen-space vertex
+        for (int v = 0; v < nOut; ++v) {
+            int o = v * 7;
+            float invW = 1 / out[o + 3];
+
+            out[o] = logToScrX(out[o] * invW);
+            out[o + 1] = logToScrY(out[o + 1] * invW);
+            out[o + 2] = out[o + 2] * invW;
+            out[o + 3] = invW;
+        }
+
+        for (int v = 1; v < nOut - 1; ++v) {
+            setupTriangle(triIdx, sampleable, i0, i1, i2, out, 0, v * 7, (v + 1) * 7, true);
+        }
+    }
+
+    private void loadClipVertex(float[] dest, int off, int idx, float b0, float b1, float b2) {
+        System.arraycopy(clipCache, idx * 4, dest, off, 4);
+        dest[off + 4] = b0;
+        dest[off + 5] = b1;
+        dest[off + 6] = b2;
+    }
+
+    // o0, o1 and o2 are offsets of screen-space x, y, z and 1/w in verts. if clipped is true, each is followed by the
+    // vertex's barycentric weights in the original triangle
+    private void setupTriangle(int triIdx, Sampleable sampleable, int i0, int i1, int i2, float[] verts, int o0, int o1, int o2, boolean clipped) {
+        float sx0 = verts[o0], sy0 = verts[o0 + 1];
+        float sx1 = verts[o1], sy1 = verts[o1 + 1];
+        float sx2 = verts[o2], sy2 = verts[o2 + 1];
+
+        float area = (sy0 - sy2) * (sx1 - sx2) + (sy1 - sy2) * (sx2 - sx0);
+
+        // the normal is not in screen space once there is a projection, so use the winding order instead
+        if (projection != null && cullBackFace && area < 0) return;
 
         // optimization: Math.floor and Math.ceil convert float arguments to double
         int minX = (int)Math.floor(Math.max(0, Math.min(sx0, Math.min(sx1, sx2))));
-        int maxX = (int)Math.ceil(Math.min(width - 1, Math.max(sx0, Math.max(sx1, sx2))));
+        int maxX = (int)Math.ceil(Math.min(rasterWidth - 1, Math.max(sx0, Math.max(sx1, sx2))));
 
         int minY = (int)Math.floor(Math.max(0, Math.min(sy0, Math.min(sy1, sy2))));
-        int maxY = (int)Math.ceil(Math.min(height - 1, Math.max(sy0, Math.max(sy1, sy2))));
+        int maxY = (int)Math.ceil(Math.min(rasterHeight - 1, Math.max(sy0, Math.max(sy1, sy2))));
 
-        float area = (sy0 - sy2) * (sx1 - sx2) + (sy1 - sy2) * (sx2 - sx0);
+        // entirely off-screen
+        if (minX > maxX || minY > maxY) return;
+
+        Triangle tri;
+        boolean defer = depthSortTranslucent && blendMode == BlendMode.BLEND_OVER;
+
+        if (defer) {
+            if (nDeferredTriangles == deferredTriangles.size()) {
+                deferredTriangles.add(new Triangle());
+            }
+
+            tri = deferredTriangles.get(nDeferredTriangles);
+        } else if (tileExecutor != null) {
+            if (nBinnedTriangles == binnedTriangles.size()) {
+                binnedTriangles.add(new Triangle());
+            }
+
+            tri = binnedTriangles.get(nBinnedTriangles);
+        } else {
+            tri = scratchTriangle;
+        }
+
+        tri.minX = minX;
+        tri.maxX = maxX;
+        tri.minY = minY;
+        tri.maxY = maxY;
+        tri.area = area;
+
+        tri.fixedPoint = Math.max(Math.max(Math.abs(sx0), Math.abs(sy0)), Math.max(Math.max(Math.abs(sx1), Math.abs(sy1)),
+                Math.max(Math.abs(sx2), Math.abs(sy2)))) < FIXED_POINT_LIMIT;
+
+        if (tri.fixedPoint) {
+            tri.fx0 = Math.round(sx0 * (1 << SUBPIXEL_BITS));
+            tri.fy0 = Math.round(sy0 * (1 << SUBPIXEL_BITS));
+            tri.fx1 = Math.round(sx1 * (1 << SUBPIXEL_BITS));
+            tri.fy1 = Math.round(sy1 * (1 << SUBPIXEL_BITS));
+            tri.fx2 = Math.round(sx2 * (1 << SUBPIXEL_BITS));
+            tri.fy2 = Math.round(sy2 * (1 << SUBPIXEL_BITS));
+            tri.fixedArea = edge(tri.fx0, tri.fy0, tri.fx1, tri.fy1, tri.fx2, tri.fy2);
+        }
+
+        tri.sx0 = sx0;
+        tri.sy0 = sy0;
+        tri.z0 = verts[o0 + 2];
+        tri.w0 = verts[o0 + 3];
+        tri.sx1 = sx1;
+        tri.sy1 = sy1;
+        tri.z1 = verts[o1 + 2];
+        tri.w1 = verts[o1 + 3];
+        tri.sx2 = sx2;
+        tri.sy2 = sy2;
+        tri.z2 = verts[o2 + 2];
+        tri.w2 = verts[o2 + 3];
+
+        // depth is affine in screen space (even with a projection, since it is z/w), so it is a plane over the triangle
+        if (area != 0) {
+            float invArea = 1 / area;
+            float z0 = tri.z0, z1 = tri.z1, z2 = tri.z2;
+
+            tri.dzdx = (sy2 - sy1) * invArea * z0 + (sy0 - sy2) * invArea * z1 + (sy1 - sy0) * invArea * z2;
+            tri.dzdy = (sx1 - sx2) * invArea * z0 + (sx2 - sx0) * invArea * z1 + (sx0 - sx1) * invArea * z2;
+            tri.zMax = Math.max(z0, Math.max(z1, z2));
+        }
+
+        tri.perspective = projection != null;
+        tri.clipped = clipped;
+        if (clipped) {
+            System.arraycopy(verts, o0 + 4, tri.clipWeights, 0, 3);
+            System.arraycopy(verts, o1 + 4, tri.clipWeights, 3, 3);
+            System.arraycopy(verts, o2 + 4, tri.clipWeights, 6, 3);
+        }
+
+        tri.normal.x = normalCache[triIdx * 3];
+        tri.normal.y = normalCache[triIdx * 3 + 1];
+        tri.normal.z = normalCache[triIdx * 3 + 2];
+        tri.sampleable = sampleable;
+        tri.shader = sampleable instanceof SpanShader ? (SpanShader)sampleable : null;
+        if (tri.shader != null) tri.shader.setup(i0, i1, i2, tri.normal, blendMode, tri.attributes);
+        tri.i0 = i0;
+        tri.i1 = i1;
+        tri.i2 = i2;
+
+        tri.blendMode = blendMode;
+        tri.depthMode = depthMode;
+        tri.id = nextTriangleId();
+
+        if (defer) {
+            depthSort.set(nDeferredTriangles++, (tri.z0 + tri.z1 + tri.z2) / 3);
+        } else {
+            rasterizeOrBin(tri);
+        }
+    }
+
+    private int nextTriangleId() {
+        if (++nextTriangleId == 0) {
+            // wrapped around, forget every id that has been handed out
+            Arrays.fill(blockTestedBy, 0);
+            nextTriangleId = 1;
+        }
+
+        return nextTriangleId;
+    }
+
+    // clipMaxX and clipMaxY are exclusive
+    private void rasterize(Triangle tri, int clipMinX, int clipMinY, int clipMaxX, int clipMaxY, Vector4f outColor, Vector4f prevColor, Vector4f blendColor, Span span) {
+        if (samples > 1) {
+            rasterizeMultisample(tri, clipMinX, clipMinY, clipMaxX, clipMaxY, outColor, prevColor, blendColor, span);
+            return;
+        }
+
+        float sx0 = tri.sx0, sy0 = tri.sy0;
+        float sx1 = tri.sx1, sy1 = tri.sy1;
+        float sx2 = tri.sx2, sy2 = tri.sy2;
+
+        // the bounding box keeps the old rasterizer's convention of excluding the last column
+        int minX = Math.max(clipMinX, tri.minX), maxX = Math.min(clipMaxX, tri.maxX);
+        int minY = Math.max(clipMinY, tri.minY), maxY = Math.min(clipMaxY - 1, tri.maxY);
+
+        // the reference path, which is also used for triangles too far off-screen for fixed point
+        if (referenceRasterizer || !tri.fixedPoint) {
+            float area = tri.area;
+
+            for (int y = minY; y <= maxY; ++y) {
+                for (int x = minX; x < maxX; ++x) {
+                    float b0 = ((y - sy2) * (sx1 - sx2) + (sy1 - sy2) * (sx2 - x)) / area;
+                    float b1 = ((y - sy0) * (sx2 - sx0) + (sy2 - sy0) * (sx0 - x)) / area;
+                    float b2 = ((y - sy1) * (sx0 - sx1) + (sy0 - sy1) * (sx1 - x)) / area;
+
+                    if (b0 < 0 || b0 >= 1 || b1 < 0 || b1 >= 1 || b2 < 0 || b2 >= 1) continue;
+
+                    drawFragment(tri, y * rasterWidth + x, b0, b1, b2, outColor, prevColor, span);
+                }
+            }
+
+            return;
+        }
+
+        // degenerate (zero-area) triangles cover no pixels
+        if (tri.fixedArea == 0) return;
+
+        int fx0 = tri.fx0, fy0 = tri.fy0;
+        int fx1 = tri.fx1, fy1 = tri.fy1;
+        int fx2 = tri.fx2, fy2 = tri.fy2;
+        float invArea = 1f / tri.fixedArea;
+
+        // the edge functions are affine in x and y, so step them instead of evaluating them at every pixel. they are
+        // integers, so stepping them is exact
+        long de0dx = (long)(fy2 - fy1) << SUBPIXEL_BITS;
+        long de1dx = (long)(fy0 - fy2) << SUBPIXEL_BITS;
+        long de2dx = (long)(fy1 - fy0) << SUBPIXEL_BITS;
+
+        boolean checkBlocks = tri.depthMode != 0;
+
+        // span shaders shade runs of pixels at once, which are then blended all at once too
+        boolean useSpans = tri.shader != null;
 
         for (int y = minY; y <= maxY; ++y) {
-            for (int x = minX; x < maxX; ++x) {
-                float b0 = ((y - sy2) * (sx1 - sx2) + (sy1 - sy2) * (sx2 - x)) / area;
-                float b1 = ((y - sy0) * (sx2 - sx0) + (sy2 - sy0) * (sx0 - x)) / area;
-                float b2 = ((y - sy1) * (sx0 - sx1) + (sy0 - sy1) * (sx1 - x)) / area;
+            int px = minX << SUBPIXEL_BITS, py = y << SUBPIXEL_BITS;
+            long e0 = edge(px, py, fx1, fy1, fx2, fy2);
+            long e1 = edge(px, py, fx2, fy2, fx0, fy0);
+            long e2 = edge(px, py, fx0, fy0, fx1, fy1);
+            boolean inside = false;
+
+            // rows are split at depth block boundaries so that blocks where the triangle is hidden can be skipped
+            row:
+            for (int x = minX; x < maxX; ) {
+                int end = checkBlocks ? Math.min(maxX, (x | (DEPTH_BLOCK_SIZE - 1)) + 1) : maxX;
+
+                if (checkBlocks && rejectBlock(tri, x / DEPTH_BLOCK_SIZE, y / DEPTH_BLOCK_SIZE)) {
+                    e0 += de0dx * (end - x);
+                    e1 += de1dx * (end - x);
+                    e2 += de2dx * (end - x);
+                    x = end;
+                    continue;
+                }
+
+                for (; x < end; ++x, e0 += de0dx, e1 += de1dx, e2 += de2dx) {
+                    float b0 = e0 * invArea, b1 = e1 * invArea, b2 = e2 * invArea;
+
+                    if (b0 < 0 || b0 >= 1 || b1 < 0 || b1 >= 1 || b2 < 0 || b2 >= 1) {
+                        // triangles are convex, so once we leave one we will not enter it again on this row
+                        if (inside) break row;
+                        continue;
+                    }
+
+                    inside = true;
+
+                    if (useSpans) {
+                        spanFragment(tri, y * rasterWidth + x, b0, b1, b2, span);
+                    } else {
+                        drawFragment(tri, y * rasterWidth + x, b0, b1, b2, outColor, prevColor, span);
+                    }
+                }
+            }
+
+            flushSpan(tri, span);
+        }
+    }
+
+    // the edge function of the edge from (x0, y0) to (x1, y1) at (x, y), all in fixed point. this is the weight of the
+    // vertex opposite the edge, scaled by the triangle's fixed-point area
+    private static long edge(int x, int y, int x0, int y0, int x1, int y1) {
+        return (long)(y - y1) * (x0 - x1) + (long)(y0 - y1) * (x1 - x);
+    }
+
+    // l0, l1 and l2 are the screen-space barycentric weights of the pixel
+    private void drawFragment(Triangle tri, int idx, float l0, float l1, float l2, Vector4f outColor, Vector4f prevColor, Span span) {
+        int depthMode = tri.depthMode;
+
+        // z/w is affine in screen space, so depth never needs perspective correction
+        float z = l0 * tri.z0 + l1 * tri.z1 + l2 * tri.z2;
+        if ((depthMode & FB_DEPTH_USE) != 0 && isHidden(idx, z)) return;
+
+        if ((depthMode & FB_DEPTH_COMMIT) != 0) {
+            storeDepth(idx, z);
+        }
+
+        if (tri.shader != null) {
+            int argb = shadeOne(tri, l0, l1, l2, span);
+
+            if ((depthMode & FB_DEPTH_COMMIT_TRANSPARENT) != 0 && (argb >>> 24) != 0) {
+                storeDepth(idx, z);
+            }
+
+            colorData[idx] = tri.blendMode.getIntFunction().blend(argb, colorData[idx]);
+            return;
+        }
+
+        prevColor.fromARGB(colorData[idx]);
+        shade(tri, l0, l1, l2, outColor, span);
+
+        if ((depthMode & FB_DEPTH_COMMIT_TRANSPARENT) != 0 && outColor.w > 0) {
+            storeDepth(idx, z);
+        }
+
+        tri.blendMode.getFunction().blend(outColor, prevColor);
+        colorData[idx] = outColor.toARGB();
+    }
+
+    // like drawFragment, but the pixel is only added to the span. the span is shaded and blended when it is flushed
+    private void spanFragment(Triangle tri, int idx, float l0, float l1, float l2, Span span) {
+        int depthMode = tri.depthMode;
+
+        float z = l0 * tri.z0 + l1 * tri.z1 + l2 * tri.z2;
+        if ((depthMode & FB_DEPTH_USE) != 0 && isHidden(idx, z)) return;
+
+        if ((depthMode & FB_DEPTH_COMMIT) != 0) {
+            storeDepth(idx, z);
+        }
+
+        // spans are runs of adjacent pixels, so a hidden pixel ends one
+        if (span.n == Span.MAX_LENGTH || span.start + span.n != idx) {
+            flushSpan(tri, span);
+        }
+
+        int i = span.n++;
+        if (i == 0) span.start = idx;
+
+        storeWeights(tri, l0, l1, l2, span, i);
+        span.z[i] = z;
+    }
+
+    private void flushSpan(Triangle tri, Span span) {
+        int n = span.n;
+        if (n == 0) return;
+
+        int[] colors = span.colors;
+        tri.shader.shade(tri.attributes, span.b0, span.b1, span.b2, colors, n);
+
+        if ((tri.depthMode & FB_DEPTH_COMMIT_TRANSPARENT) != 0) {
+            for (int i = 0; i < n; ++i) {
+                if ((colors[i] >>> 24) != 0) storeDepth(span.start + i, span.z[i]);
+            }
+        }
+
+        SpanBlender.INSTANCE.blend(tri.blendMode, colors, colorData, span.start, n);
+        span.n = 0;
+    }
+
+    // samples the triangle's color at the screen-space barycentric weights l0, l1 and l2
+    private static void shade(Triangle tri, float l0, float l1, float l2, Vector4f outColor, Span span) {
+        if (tri.perspective) {
+            storeWeights(tri, l0, l1, l2, span, 0);
+            tri.sampleable.sample(span.b0[0], span.b1[0], span.b2[0], tri.normal, tri.i0, tri.i1, tri.i2, outColor);
+        } else {
+            tri.sampleable.sample(l0, l1, l2, tri.normal, tri.i0, tri.i1, tri.i2, outColor);
+        }
+    }
+
+    // shades one pixel with the triangle's span shader, through the first slot of the span (which must be empty)
+    private static int shadeOne(Triangle tri, float l0, float l1, float l2, Span span) {
+        storeWeights(tri, l0, l1, l2, span, 0);
+        tri.shader.shade(tri.attributes, span.b0, span.b1, span.b2, span.colors, 1);
+        return span.colors[0];
+    }
+
+    // stores the weights of the vertices the triangle's attributes belong to in slot i of the span, given the
+    // screen-space barycentric weights
+    private static void storeWeights(Triangle tri, float l0, float l1, float l2, Span span, int i) {
+        if (!tri.perspective) {
+            span.b0[i] = l0;
+            span.b1[i] = l1;
+            span.b2[i] = l2;
+            return;
+        }
+
+        // attributes are affine in 3D space, not screen space: interpolate them over w
+        float pw0 = l0 * tri.w0, pw1 = l1 * tri.w1, pw2 = l2 * tri.w2;
+        float invSum = 1 / (pw0 + pw1 + pw2);
+
+        float b0 = pw0 * invSum;
+        float b1 = pw1 * invSum;
+        float b2 = pw2 * invSum;
+
+        if (tri.clipped) {
+            float[] cw = tri.clipWeights;
+            span.b0[i] = b0 * cw[0] + b1 * cw[3] + b2 * cw[6];
+            span.b1[i] = b0 * cw[1] + b1 * cw[4] + b2 * cw[7];
+            span.b2[i] = b0 * cw[2] + b1 * cw[5] + b2 * cw[8];
+        } else {
+            span.b0[i] = b0;
+            span.b1[i] = b1;
+            span.b2[i] = b2;
+        }
+    }
+
+    // like rasterize, but coverage and depth are tested at every sample of a pixel while the color is only shaded once
+    private void rasterizeMultisample(Triangle tri, int clipMinX, int clipMinY, int clipMaxX, int clipMaxY, Vector4f outColor, Vector4f prevColor, Vector4f blendColor, Span span) {
+        float sx0 = tri.sx0, sy0 = tri.sy0;
+        float sx1 = tri.sx1, sy1 = tri.sy1;
+        float sx2 = tri.sx2, sy2 = tri.sy2;
+
+        // samples are offset by up to half a pixel, so a triangle can cover samples in the last column too
+        int minX = Math.max(clipMinX, tri.minX), maxX = Math.min(clipMaxX - 1, tri.maxX);
+        int minY = Math.max(clipMinY, tri.minY), maxY = Math.min(clipMaxY - 1, tri.maxY);
+
+        float area = tri.area;
+        if (area == 0) return;
+
+        float invArea = 1 / area;
+
+        float db0dx = (sy2 - sy1) * invArea, db0dy = (sx1 - sx2) * invArea;
+        float db1dx = (sy0 - sy2) * invArea, db1dy = (sx2 - sx0) * invArea;
+        float db2dx = (sy1 - sy0) * invArea, db2dy = (sx0 - sx1) * invArea;
+
+        float z0 = tri.z0, z1 = tri.z1, z2 = tri.z2;
+        float dzdx = tri.dzdx, dzdy = tri.dzdy;
+
+        float b0Start = ((minY - sy2) * (sx1 - sx2) + (sy1 - sy2) * (sx2 - minX)) * invArea;
+        float b1Start = ((minY - sy0) * (sx2 - sx0) + (sy2 - sy0) * (sx0 - minX)) * invArea;
+        float b2Start = ((minY - sy1) * (sx0 - sx1) + (sy0 - sy1) * (sx1 - minX)) * invArea;
+
+        int ns = samples, allSamples = (1 << ns) - 1;
+        float[] sampleX = this.sampleX, sampleY = this.sampleY;
+
+        // how far each weight can move between a pixel's sample point and its samples. pixels which are at least this
+        // far inside every edge are fully covered, which is most of them
+        float m0 = 0, m1 = 0, m2 = 0;
+        for (int s = 0; s < ns; ++s) {
+            m0 = Math.max(m0, Math.abs(sampleX[s] * db0dx + sampleY[s] * db0dy));
+            m1 = Math.max(m1, Math.abs(sampleX[s] * db1dx + sampleY[s] * db1dy));
+            m2 = Math.max(m2, Math.abs(sampleX[s] * db2dx + sampleY[s] * db2dy));
+        }
+
+        int depthMode = tri.depthMode;
+        boolean depthUse = (depthMode & FB_DEPTH_USE) != 0, depthCommit = (depthMode & FB_DEPTH_COMMIT) != 0;
+        boolean commitTransparent = (depthMode & FB_DEPTH_COMMIT_TRANSPARENT) != 0;
+        BlendMode.BlendFunction blend = tri.blendMode.getFunction();
+        BlendMode.IntBlendFunction intBlend = tri.blendMode.getIntFunction();
+
+        for (int y = minY; y <= maxY; ++y) {
+            float b0 = b0Start + (y - minY) * db0dy, b1 = b1Start + (y - minY) * db1dy, b2 = b2Start + (y - minY) * db2dy;
+
+            // skip blocks where the triangle is hidden (shading dominates here, so checking per pixel costs nothing)
+            int blockEnd = depthMode != 0 ? minX : Integer.MAX_VALUE;
+            boolean rejected = false;
+
+            for (int x = minX; x <= maxX; ++x, b0 += db0dx, b1 += db1dx, b2 += db2dx) {
+                if (x == blockEnd) {
+                    blockEnd = (x | (DEPTH_BLOCK_SIZE - 1)) + 1;
+                    rejected = rejectBlock(tri, x / DEPTH_BLOCK_SIZE, y / DEPTH_BLOCK_SIZE);
+                }
+
+                if (rejected) continue;
+
+                int covered = 0;
+
+                if (b0 >= m0 && b0 < 1 - m0 && b1 >= m1 && b1 < 1 - m1 && b2 >= m2 && b2 < 1 - m2) {
+                    covered = allSamples;
+                } else {
+                    for (int s = 0; s < ns; ++s) {
+                        float ox = sampleX[s], oy = sampleY[s];
+                        float s0 = b0 + ox * db0dx + oy * db0dy;
+                        float s1 = b1 + ox * db1dx + oy * db1dy;
+                        float s2 = b2 + ox * db2dx + oy * db2dy;
+
+                        if (s0 < 0 || s0 >= 1 || s1 < 0 || s1 >= 1 || s2 < 0 || s2 >= 1) continue;
+                        covered |= 1 << s;
+                    }
+
+                    if (covered == 0) continue;
+                }
+
+                int base = (y * rasterWidth + x) * ns;
+                float z = b0 * z0 + b1 * z1 + b2 * z2;
+
+                if (depthUse) {
+                    for (int m = covered; m != 0; m &= m - 1) {
+                        int s = Integer.numberOfTrailingZeros(m);
+                        if (isHidden(base + s, z + sampleX[s] * dzdx + sampleY[s] * dzdy)) covered &= ~(1 << s);
+                    }
+
+                    if (covered == 0) continue;
+                }
+
+                // shade at a covered sample rather than the pixel's sample point, which may lie outside the triangle
+                int first = Integer.numberOfTrailingZeros(covered);
+                float fx = sampleX[first], fy = sampleY[first];
+                float l0 = b0 + fx * db0dx + fy * db0dy, l1 = b1 + fx * db1dx + fy * db1dy, l2 = b2 + fx * db2dx + fy * db2dy;
 
-                if (b0 < 0 || b0 >= 1 || b1 < 0 || b1 >= 1 || b2 < 0 || b2 >= 1) continue;
+                // span shaders shade to a packed color, anything else to outColor
+                int srcARGB = 0;
+                boolean commit;
 
-                float z = b0 * vert0.z + b1 * vert1.z + b2 * vert2.z;
-                if ((depthMode & FB_DEPTH_USE) != 0 && z <= depth[y * width + x]) continue;
+                if (tri.shader != null) {
+                    srcARGB = shadeOne(tri, l0, l1, l2, span);
+                    commit = depthCommit || (commitTransparent && (srcARGB >>> 24) != 0);
+                } else {
+                    shade(tri, l0, l1, l2, outColor, span);
+                    commit = depthCommit || (commitTransparent && outColor.w > 0);
+                }
+
+                // samples usually hold the same color as their neighbours, so only blend again when it changes
+                int prevARGB = 0, blendedARGB = 0;
+                boolean blended = false;
+
+                for (int m = covered; m != 0; m &= m - 1) {
+                    int s = Integer.numberOfTrailingZeros(m);
+
+                    if (commit) {
+                        storeDepth(base + s, z + sampleX[s] * dzdx + sampleY[s] * dzdy);
+                    }
+
+                    int sampleARGB = colorData[base + s];
+                    if (!blended || sampleARGB != prevARGB) {
+                        if (tri.shader != null) {
+                            blendedARGB = intBlend.blend(srcARGB, sampleARGB);
+                        } else {
+                            prevColor.fromARGB(sampleARGB);
+                            blendColor.copyFrom(outColor);
+                            blend.blend(blendColor, prevColor);
+                            blendedARGB = blendColor.toARGB();
+                        }
+
+                        prevARGB = sampleARGB;
+                        blended = true;
+                    }
 
-                if ((depthMode & FB_DEPTH_COMMIT) != 0) {
-                    depth[y * width + x] = z;
+                    colorData[base + s] = blendedARGB;
                 }
+            }
+        }
+    }
+
+    // true if z is not closer than the depth stored at idx
+    private boolean isHidden(int idx, float z) {
+        if (depth != null) return z <= depth[idx];
+        if (depth16 != null) return quantizeDepth(z) <= (depth16[idx] & 0xFFFF);
+        return quantizeDepth(z) <= depth24[idx];
+    }
+
+    private void storeDepth(int idx, float z) {
+        if (depth != null) depth[idx] = z;
+        else if (depth16 != null) depth16[idx] = (short)quantizeDepth(z);
+        else depth24[idx] = quantizeDepth(z);
+    }
+
+    // -1 maps to 1 and 1 maps to depthMax, leaving 0 for the cleared depth
+    private int quantizeDepth(float z) {
+        // Math.min and Math.max compile to branchless selects. NaN (from a degenerate triangle) casts to 0
+        return 1 + (int)(Math.min(Math.max(z + 1, 0f), 2f) * depthScale);
+    }
+
+    // called before a triangle is rasterized in a depth block. returns true if all of its fragments there are hidden
+    private boolean rejectBlock(Triangle tri, int bx, int by) {
+        int block = by * blocksX + bx;
+        if (blockTestedBy[block] == tri.id) return blockRejected[block];
+
+        blockTestedBy[block] = tri.id;
+        return blockRejected[block] = testBlock(tri, block, bx, by);
+    }
 
-                prevColor.fromARGB(color.getRGB(x, y));
-                sampleable.sample(b0, b1, b2, normal, sampleable.extra(i0), sampleable.extra(i1), sampleable.extra(i2), outColor);
+    private boolean testBlock(Triangle tri, int block, int bx, int by) {
+        int depthMode = tri.depthMode;
+
+        if ((depthMode & FB_DEPTH_USE) == 0) {
+            // depth is written without being tested, which can move samples further away
+            blockMinDepth[block] = Float.NEGATIVE_INFINITY;
+            return false;
+        }
+
+        // the range of the triangle's depth plane over the block, counting samples up to half a pixel outside of it
+        float dzdx = tri.dzdx, dzdy = tri.dzdy;
+        float x = bx * DEPTH_BLOCK_SIZE - 0.5f, y = by * DEPTH_BLOCK_SIZE - 0.5f;
+        float zCorner = tri.z0 + (x - tri.sx0) * dzdx + (y - tri.sy0) * dzdy;
+        float zMax = zCorner + Math.max(0, dzdx) * DEPTH_BLOCK_SIZE + Math.max(0, dzdy) * DEPTH_BLOCK_SIZE;
+        float zMin = zCorner + Math.min(0, dzdx) * DEPTH_BLOCK_SIZE + Math.min(0, dzdy) * DEPTH_BLOCK_SIZE;
+
+        if (Math.min(zMax, tri.zMax) + DEPTH_BLOCK_EPSILON <= blockMinDepth[block]) return true;
+
+        // if the triangle covers the whole block, every sample in it ends up at least as close as the triangle. the last
+        // column and row of the raster are left out since the rasterizer may not draw them
+        if ((depthMode & FB_DEPTH_COMMIT) != 0 && x + DEPTH_BLOCK_SIZE < rasterWidth - 1 && y + DEPTH_BLOCK_SIZE < rasterHeight - 1
+                && coversBlock(tri, x, y)) {
+            blockMinDepth[block] = Math.max(blockMinDepth[block], zMin - DEPTH_BLOCK_EPSILON);
+        }
 
-                if ((depthMode & FB_DEPTH_COMMIT_TRANSPARENT) != 0 && outColor.w > 0) {
-                    depth[y * width + x] = z;
+        return false;
+    }
+
+    // true if the square from (x, y) to (x + DEPTH_BLOCK_SIZE, y + DEPTH_BLOCK_SIZE) is entirely inside the triangle
+    private static boolean coversBlock(Triangle tri, float x, float y) {
+        float x1 = x + DEPTH_BLOCK_SIZE, y1 = y + DEPTH_BLOCK_SIZE;
+
+        // the triangle is convex, so it covers the square if it covers its corners
+        return coversPoint(tri, x, y) && coversPoint(tri, x1, y) && coversPoint(tri, x, y1) && coversPoint(tri, x1, y1);
+    }
+
+    private static boolean coversPoint(Triangle tri, float x, float y) {
+        float sx0 = tri.sx0, sy0 = tri.sy0;
+        float sx1 = tri.sx1, sy1 = tri.sy1;
+        float sx2 = tri.sx2, sy2 = tri.sy2;
+        float area = tri.area;
+
+        float b0 = ((y - sy2) * (sx1 - sx2) + (sy1 - sy2) * (sx2 - x)) / area;
+        float b1 = ((y - sy0) * (sx2 - sx0) + (sy2 - sy0) * (sx0 - x)) / area;
+        float b2 = ((y - sy1) * (sx0 - sx1) + (sy0 - sy1) * (sx1 - x)) / area;
+
+        return b0 > 0 && b1 > 0 && b2 > 0;
+    }
+
+    // resolves the samples into the output image one tile at a time, filling in tiles that are still waiting on a lazy clear
+    private void resolve() {
+        int scale = antiAliasMode.getScale(), outTileSize = TILE_SIZE / scale;
+
+        for (int ty = 0; ty < tilesY; ++ty) {
+            for (int tx = 0; tx < tilesX; ++tx) {
+                int tile = ty * tilesX + tx;
+
+                if (tileColorGeneration[tile] != colorGeneration) {
+                    if (colorData == outputData) {
+                        prepareTile(tile);
+                    } else {
+                        // nothing has been drawn in the tile since it was cleared, so it resolves to the clear color. the
+                        // samples are left alone until something is drawn there
+                        int minX = tx * outTileSize, maxX = Math.min(width, minX + outTileSize);
+                        for (int y = ty * outTileSize, maxY = Math.min(height, y + outTileSize); y < maxY; ++y) {
+                            Arrays.fill(outputData, y * width + minX, y * width + maxX, lazyClearColor);
+                        }
+                    }
+                } else if (colorData != outputData) {
+                    resolveTile(tx * outTileSize, ty * outTileSize, outTileSize);
                 }
+            }
+        }
+    }
+
+    // minX, minY and size are in output pixels
+    private void resolveTile(int minX, int minY, int size) {
+        int maxX = Math.min(width, minX + size), maxY = Math.min(height, minY + size);
 
-                blendMode.getFunction().blend(outColor, prevColor);
-                color.setRGB(x, y, outColor.toARGB());
+        if (samples > 1) {
+            for (int y = minY; y < maxY; ++y) {
+                for (int i = y * width + minX, max = y * width + maxX; i < max; ++i) {
+                    outputData[i] = boxFilter(colorData, i * samples, samples, 1, 0);
+                }
+            }
+        } else {
+            int scale = antiAliasMode.getScale();
+
+            for (int y = minY; y < maxY; ++y) {
+                for (int x = minX; x < maxX; ++x) {
+                    outputData[y * width + x] = boxFilter(colorData, (y * rasterWidth + x) * scale, scale, scale, rasterWidth);
+                }
             }
         }
     }
+
+    // averages a block of rows * cols samples (rows are stride apart). the colors are weighted by alpha, so that
+    // transparent samples along an edge don't darken it
+    private static int boxFilter(int[] data, int off, int cols, int rows, int stride) {
+        int first = data[off];
+        boolean uniform = true;
+
+        // most pixels are entirely inside a single triangle, so check for that before doing any math
+        for (int row = 0, rowOff = off; row < rows && uniform; ++row, rowOff += stride) {
+            for (int i = rowOff, max = rowOff + cols; i < max; ++i) {
+                if (data[i] != first) {
+                    uniform = false;
+                    break;
+                }
+            }
+        }
+
+        if (uniform) return first;
+
+        int a = 0, r = 0, g = 0, b = 0;
+        for (int row = 0, rowOff = off; row < rows; ++row, rowOff += stride) {
+            for (int i = rowOff, max = rowOff + cols; i < max; ++i) {
+                int c = data[i];
+                int ca = c >>> 24;
+
+                a += ca;
+                r += ((c >>> 16) & 0xFF) * ca;
+                g += ((c >>> 8) & 0xFF) * ca;
+                b += (c & 0xFF) * ca;
+            }
+        }
+
+        if (a == 0) return 0;
+
+        int n = rows * cols, half = a / 2;
+        return ((a + n / 2) / n) << 24 | ((r + half) / a) << 16 | ((g + half) / a) << 8 | ((b + half) / a);
+    }
+
+    // a run of adjacent pixels of one row, waiting to be shaded and blended. each rasterizing thread has its own
+    private static class Span {
+        static final int MAX_LENGTH = 256;
+
+        int start, n; // the index of the first pixel, and the number of pixels
+
+        // the weights (for the shader) and depth of each pixel, and the colors they are shaded to
+        final float[] b0 = new float[MAX_LENGTH], b1 = new float[MAX_LENGTH], b2 = new float[MAX_LENGTH];
+        final float[] z = new float[MAX_LENGTH];
+        final int[] colors = new int[MAX_LENGTH];
+    }
+
+    /*
+     * orders triangles back to front with an LSD radix sort on their depths, a byte at a time. the sort is stable, so
+     * triangles at the same depth stay in the order they were drawn. the arrays are kept between sorts, so once they are
+     * big enough sorting allocates nothing
+     */
+    private static class DepthSort {
+        private int[] keys = new int[64], order = new int[64];
+        private int[] tmpKeys = new int[64], tmpOrder = new int[64];
+        private final int[] counts = new int[256];
+
+        void set(int i, float depth) {
+            if (i == keys.length) {
+                keys = Arrays.copyOf(keys, i * 2);
+                order = new int[i * 2];
+                tmpKeys = new int[i * 2];
+                tmpOrder = new int[i * 2];
+            }
+
+            // larger depths are closer. flipping the sign bit of positive floats and every bit of negative ones makes
+            // the keys compare like the floats when treated as unsigned, so the farthest triangle gets the smallest key
+            int bits = Float.floatToIntBits(depth);
+            keys[i] = bits ^ ((bits >> 31) | 0x80000000);
+        }
+
+        // the indices of the first n depths, farthest first
+        int[] sort(int n) {
+            int[] keys = this.keys, order = this.order, tmpKeys = this.tmpKeys, tmpOrder = this.tmpOrder;
+            int[] counts = this.counts;
+
+            for (int i = 0; i < n; ++i) {
+                order[i] = i;
+            }
+
+            for (int shift = 0; shift < 32; shift += 8) {
+                Arrays.fill(counts, 0);
+
+                for (int i = 0; i < n; ++i) {
+                    ++counts[(keys[i] >>> shift) & 0xFF];
+                }
+
+                // nothing to do if every key has the same byte here, which is common for the top bytes
+                if (counts[(keys[0] >>> shift) & 0xFF] == n) continue;
+
+                for (int b = 0, sum = 0; b < 256; ++b) {
+                    int c = counts[b];
+                    counts[b] = sum;
+                    sum += c;
+                }
+
+                for (int i = 0; i < n; ++i) {
+                    int pos = counts[(keys[i] >>> shift) & 0xFF]++;
+                    tmpKeys[pos] = keys[i];
+                    tmpOrder[pos] = order[i];
+                }
+
+                int[] t = keys; keys = tmpKeys; tmpKeys = t;
+                t = order; order = tmpOrder; tmpOrder = t;
+            }
+
+            this.keys = keys;
+            this.order = order;
+            this.tmpKeys = tmpKeys;
+            this.tmpOrder = tmpOrder;
+            return order;
+        }
+    }
+
+    // a transformed triangle along with the state it was drawn with
+    private static class Triangle {
+        float sx0, sy0, z0, w0; // w is 1/w of the vertex in clip space
+        float sx1, sy1, z1, w1;
+        float sx2, sy2, z2, w2;
+        int minX, maxX, minY, maxY;
+        float area;
+
+        // the screen-space vertices and area in fixed point, if the vertices are close enough to the screen
+        boolean fixedPoint;
+        int fx0, fy0, fx1, fy1, fx2, fy2;
+        long fixedArea;
+
+        // the depth plane: its slope in screen space and the closest depth of any vertex
+        float dzdx, dzdy, zMax;
+
+        boolean perspective;
+
+        // if the triangle was produced by near-plane clipping, the weights of each vertex in the original triangle
+        boolean clipped;
+        final float[] clipWeights = new float[9];
+
+        final Vector4f normal = new Vector4f();
+        Sampleable sampleable;
+
+        // the sampleable if it is a span shader, and what it set up for this triangle
+        SpanShader shader;
+        final float[] attributes = new float[SpanShader.MAX_ATTRIBUTES];
+        int i0, i1, i2;
+
+        BlendMode blendMode;
+        int depthMode;
+
+        // identifies the triangle in the depth block tests. ids are never 0
+        int id;
+    }
 }
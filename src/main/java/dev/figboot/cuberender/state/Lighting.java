@@ -0,0 +1,155 @@
+package dev.figboot.cuberender.state;
+
+import dev.figboot.cuberender.math.MathUtil;
+import dev.figboot.cuberender.math.Vector4f;
+import lombok.Getter;
+
+import java.util.Arrays;
+
+/**
+ * How a {@link Mesh} is lit: an ambient level plus any number of directional lights. Lighting is flat, since it only
+ * depends on the normal of each triangle, so it is worked out once per triangle. The result is a factor from 0 (black)
+ * to 1 (the texture's own color) that the color of the whole triangle is scaled by.
+ * <p>Lighting objects are immutable and can be shared between meshes.</p>
+ */
+public final class Lighting {
+    /**
+     * The lighting meshes had before lighting could be configured: a half-Lambert light facing the viewer, so faces
+     * pointing at the viewer are fully lit and faces at right angles to them are half lit.
+     */
+    public static final Lighting DEFAULT = new Builder().halfLambert(new Vector4f(0, 0, 1, 0), 1).build();
+
+    /**
+     * The light level of every face, regardless of its direction.
+     */
+    @Getter private final float ambient;
+
+    // x, y and z of the (normalized) direction towards each light, its intensity, and 1 if it is half-Lambert
+    private final float[] lights;
+
+    private Lighting(Builder builder) {
+        this.ambient = builder.ambient;
+        this.lights = Arrays.copyOf(builder.lights, builder.nLights * 5);
+    }
+
+    // the light factor of the LIGHT_FACTOR and LIGHT_VECTOR attachments. LIGHT_FACTOR sets the "black level"
+    static Lighting fromAttachments(float lightFactor, Vector4f lightVector) {
+        return new Builder().ambient(1 - lightFactor).halfLambert(lightVector, lightFactor).build();
+    }
+
+    /**
+     * Works out how brightly a face is lit.
+     * @param normal the normal of the face, in the same space as the light directions
+     * @return the light factor, from 0 to 1
+     */
+    public float factor(Vector4f normal) {
+        float fact = ambient;
+        float[] l = lights;
+
+        for (int i = 0; i < l.length; i += 5) {
+            float dot = normal.x * l[i] + normal.y * l[i + 1] + normal.z * l[i + 2];
+
+            // half-Lambert lights wrap around the model instead of cutting off at right angles
+            fact += l[i + 3] * (l[i + 4] != 0 ? (dot + 1) / 2 : Math.max(dot, 0));
+        }
+
+        return MathUtil.clamp(fact, 0, 1);
+    }
+
+    public int getLightCount() {
+        return lights.length / 5;
+    }
+
+    /**
+     * @return the normalized direction towards a light
+     */
+    public Vector4f getDirection(int light) {
+        return new Vector4f(lights[light * 5], lights[light * 5 + 1], lights[light * 5 + 2], 0);
+    }
+
+    public float getIntensity(int light) {
+        return lights[light * 5 + 3];
+    }
+
+    public boolean isHalfLambert(int light) {
+        return lights[light * 5 + 4] != 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Lighting)) return false;
+
+        Lighting that = (Lighting)o;
+        return Float.compare(ambient, that.ambient) == 0 && Arrays.equals(lights, that.lights);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Float.hashCode(ambient) + Arrays.hashCode(lights);
+    }
+
+    public static class Builder {
+        private float ambient;
+        private float[] lights = new float[10];
+        private int nLights;
+
+        public Builder() {
+            ambient = 0;
+        }
+
+        /**
+         * Sets the light level of every face, regardless of its direction. The default is 0.
+         */
+        public Builder ambient(float ambient) {
+            this.ambient = ambient;
+            return this;
+        }
+
+        /**
+         * Adds a directional light, which lights faces by the cosine of their angle to it (Lambert's cosine law). Faces
+         * pointing away from it get none of its light.
+         * @param direction the direction towards the light (it does not need to be normalized)
+         * @param intensity the light factor of a face pointing straight at the light
+         */
+        public Builder directional(Vector4f direction, float intensity) {
+            return addLight(direction, intensity, false);
+        }
+
+        /**
+         * Adds a half-Lambert directional light. Its light falls off more gently than a {@link Builder#directional}
+         * light: faces at right angles to it get half of its intensity, and only faces pointing straight away from it
+         * get none.
+         * @param direction the direction towards the light (it does not need to be normalized)
+         * @param intensity the light factor of a face pointing straight at the light
+         */
+        public Builder halfLambert(Vector4f direction, float intensity) {
+            return addLight(direction, intensity, true);
+        }
+
+        private Builder addLight(Vector4f direction, float intensity, boolean halfLambert) {
+            Vector4f dir = new Vector4f(direction.x, direction.y, direction.z, 0);
+            if (dir.lengthSquared() == 0) {
+                throw new IllegalArgumentException("light direction is zero");
+            }
+
+            dir.normalize();
+
+            if ((nLights + 1) * 5 > lights.length) {
+                lights = Arrays.copyOf(lights, lights.length * 2);
+            }
+
+            int off = nLights++ * 5;
+            lights[off] = dir.x;
+            lights[off + 1] = dir.y;
+            lights[off + 2] = dir.z;
+            lights[off + 3] = intensity;
+            lights[off + 4] = halfLambert ? 1 : 0;
+            return this;
+        }
+
+        public Lighting build() {
+            return new Lighting(this);
+        }
+    }
+}
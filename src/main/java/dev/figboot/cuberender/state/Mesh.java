@@ -1,6 +1,5 @@
 package dev.figboot.cuberender.state;
 
-import dev.figboot.cuberender.math.MathUtil;
 import dev.figboot.cuberender.math.Vector2f;
 import dev.figboot.cuberender.math.Vector4f;
 import lombok.AccessLevel;
@@ -9,25 +8,106 @@ import lombok.RequiredArgsConstructor;
 import java.util.*;
 
 @RequiredArgsConstructor(access = AccessLevel.PACKAGE)
-public abstract class Mesh<T> implements Sampleable<T> {
-    final Vector4f[] vertices;
-    final Vector4f[] normals;
+public abstract class Mesh implements Sampleable, SpanShader {
+    final float[] positions; // x, y, z per vertex (w is always 1)
+    final float[] normals;   // x, y, z per triangle (w is always 0)
     final int[] indices;
 
-    final Map<AttachmentType, Object> attachments;
+    final Lighting lighting; // null if the mesh is not lit
 
-    protected void applyLighting(Vector4f color, Vector4f normal) {
-        Float lightFact = (Float)attachments.get(AttachmentType.LIGHT_FACTOR);
+    // the attribute holding the fixed-point light factor of a triangle, and the one which is 1 if the triangle is shaded
+    // to premultiplied colors and 0 if it is shaded to straight ones. subclasses put theirs after them
+    static final int ATTR_LIGHT = 0;
+    static final int ATTR_PREMULTIPLIED = 1;
+
+    int vertexCount() {
+        return positions.length / 3;
+    }
+
+    int triangleCount() {
+        return indices == null ? vertexCount() / 3 : indices.length / 3;
+    }
+
+    /**
+     * Creates a mesh that shares this mesh's geometry (positions, normals, indices, texture coordinates and lighting)
+     * but samples from a different texture. Nothing is copied, so this is cheap.
+     * @param tex the texture to bind
+     * @return the new mesh
+     * @throws UnsupportedOperationException if this mesh has no texture coordinates
+     */
+    public Mesh withTexture(Texture tex) {
+        throw new UnsupportedOperationException("mesh has no texture coordinates");
+    }
+
+    /**
+     * Creates a mesh that shares this mesh's geometry and texture but is lit differently. Nothing is copied, so this is
+     * cheap.
+     * @param lighting the new lighting, or {@code null} to draw the mesh unlit
+     * @return the new mesh
+     */
+    public abstract Mesh withLighting(Lighting lighting);
+
+    public int getTriangleCount() {
+        return triangleCount();
+    }
+
+    // the index of vertex v (0 to 2) of a triangle
+    int vertexIndex(int triangle, int v) {
+        return indices == null ? triangle * 3 + v : indices[triangle * 3 + v];
+    }
 
-        if (lightFact == null) {
-            return;
+    /**
+     * Creates a mesh that shares this mesh's vertices, texture and lighting but only draws some of its triangles.
+     * @param triangles the indices of the triangles to keep, in the order they should be drawn
+     * @return the new mesh
+     */
+    public Mesh withTriangles(int... triangles) {
+        int nTris = triangleCount();
+        int[] newIndices = new int[triangles.length * 3];
+        float[] newNormals = new float[triangles.length * 3];
+
+        for (int i = 0; i < triangles.length; ++i) {
+            int tri = triangles[i];
+            if (tri < 0 || tri >= nTris) {
+                throw new IndexOutOfBoundsException("triangle " + tri + " of " + nTris);
+            }
+
+            for (int v = 0; v < 3; ++v) {
+                newIndices[i * 3 + v] = vertexIndex(tri, v);
+                newNormals[i * 3 + v] = normals[tri * 3 + v];
+            }
         }
 
-        float fact = 1 - (normal.dot((Vector4f)attachments.get(AttachmentType.LIGHT_VECTOR)) + 1) / 2;
-        fact *= lightFact; // lightFact should kinda set the "black level"
-        fact = 1 - fact;
+        return withTriangleData(newNormals, newIndices);
+    }
+
+    abstract Mesh withTriangleData(float[] normals, int[] indices);
+
+    /**
+     * Works out whether a triangle is drawn fully transparent, fully opaque or neither, before lighting. For a textured
+     * mesh, this looks at the texels inside the bounding box of the triangle's texture coordinates.
+     * @param triangle the index of the triangle
+     * @return the opacity of the triangle
+     * @throws IllegalStateException if the mesh has texture coordinates but no texture
+     */
+    public abstract Texture.Opacity getOpacity(int triangle);
 
-        fact = MathUtil.clamp(fact, 0, 1);
+    // the color at the given barycentric weights as packed ARGB, before lighting
+    abstract int sampleARGB(float b0, float b1, float b2, int i0, int i1, int i2);
+
+    @Override
+    public void setup(int i0, int i1, int i2, Vector4f normal, BlendMode blendMode, float[] attributes) {
+        attributes[ATTR_LIGHT] = PackedColor.lightFactor(lightFactor(normal));
+        attributes[ATTR_PREMULTIPLIED] = blendMode.isPremultiplied() ? 1 : 0;
+    }
+
+    // the factor lighting scales a triangle's red, green and blue by (1 if the mesh is not lit)
+    float lightFactor(Vector4f normal) {
+        return lighting == null ? 1 : lighting.factor(normal);
+    }
+
+    protected void applyLighting(Vector4f color, Vector4f normal) {
+        float fact = lightFactor(normal);
 
         color.x *= fact;
         color.y *= fact;
@@ -35,12 +115,15 @@ public abstract class Mesh<T> implements Sampleable<T> {
     }
 
     public static class Builder {
-        private final List<Vector4f> vertices = new ArrayList<>();
-        private final List<Vector4f> normals = new ArrayList<>();
-        private final List<Integer> indices = new ArrayList<>();
-        private final List<Vector2f> texCoords = new ArrayList<>();
+        private float[] positions = new float[72];
+        private float[] normals = new float[36];
+        private float[] texCoords = new float[48];
+        private int[] indices = new int[36];
+        private int nPositions, nNormals, nTexCoords, nIndices;
+
         private int color;
         private Texture texture;
+        private Lighting lighting;
 
         private final Map<AttachmentType, Object> attachments = new EnumMap<>(AttachmentType.class);
 
@@ -54,30 +137,72 @@ public abstract class Mesh<T> implements Sampleable<T> {
             return this;
         }
 
+        /**
+         * Sets the texture of the mesh. A mesh with texture coordinates but no texture is built as unbound geometry,
+         * which must be bound with {@link Mesh#withTexture(Texture)} before it is drawn.
+         */
         public Builder texture(Texture t) {
             this.texture = t;
             return this;
         }
 
+        public Builder texCoord(float u, float v) {
+            texCoords = ensureCapacity(texCoords, nTexCoords + 2);
+            texCoords[nTexCoords++] = u;
+            texCoords[nTexCoords++] = v;
+            return this;
+        }
+
         public Builder texCoords(Vector2f... tex) {
-            texCoords.addAll(Arrays.asList(tex));
+            for (Vector2f t : tex) {
+                texCoord(t.x, t.y);
+            }
+            return this;
+        }
+
+        public Builder vertex(float x, float y, float z) {
+            positions = ensureCapacity(positions, nPositions + 3);
+            positions[nPositions++] = x;
+            positions[nPositions++] = y;
+            positions[nPositions++] = z;
             return this;
         }
 
         public Builder vertex(Vector4f... vert) {
-            vertices.addAll(Arrays.asList(vert));
+            for (Vector4f v : vert) {
+                vertex(v.x, v.y, v.z);
+            }
+            return this;
+        }
+
+        public Builder normal(float x, float y, float z) {
+            normals = ensureCapacity(normals, nNormals + 3);
+            normals[nNormals++] = x;
+            normals[nNormals++] = y;
+            normals[nNormals++] = z;
             return this;
         }
 
         public Builder normals(Vector4f... norm) {
-            normals.addAll(Arrays.asList(norm));
+            for (Vector4f n : norm) {
+                normal(n.x, n.y, n.z);
+            }
             return this;
         }
 
         public Builder indices(int... indices) {
-            for (int idx : indices) {
-                this.indices.add(idx);
-            }
+            this.indices = ensureCapacity(this.indices, nIndices + indices.length);
+            System.arraycopy(indices, 0, this.indices, nIndices, indices.length);
+            nIndices += indices.length;
+            return this;
+        }
+
+        /**
+         * Sets how the mesh is lit. This takes precedence over the {@link AttachmentType#LIGHT_FACTOR} and
+         * {@link AttachmentType#LIGHT_VECTOR} attachments. Meshes are unlit by default.
+         */
+        public Builder lighting(Lighting lighting) {
+            this.lighting = lighting;
             return this;
         }
 
@@ -86,73 +211,199 @@ public abstract class Mesh<T> implements Sampleable<T> {
             return this;
         }
 
-        public Mesh<?> build() {
-            int[] idxArr;
-            if (indices.isEmpty()) {
-                idxArr = null;
-            } else {
-                idxArr = new int[indices.size()];
-                for (int i = 0, max = indices.size(); i < max; ++i) {
-                    idxArr[i] = indices.get(i);
-                }
+        private static float[] ensureCapacity(float[] arr, int size) {
+            return size <= arr.length ? arr : Arrays.copyOf(arr, Math.max(size, arr.length * 2));
+        }
+
+        private static int[] ensureCapacity(int[] arr, int size) {
+            return size <= arr.length ? arr : Arrays.copyOf(arr, Math.max(size, arr.length * 2));
+        }
+
+        public Mesh build() {
+            float[] posArr = Arrays.copyOf(positions, nPositions);
+            float[] normArr = Arrays.copyOf(normals, nNormals);
+            int[] idxArr = nIndices == 0 ? null : Arrays.copyOf(indices, nIndices);
+
+            Lighting light = lighting;
+            if (light == null && attachments.containsKey(AttachmentType.LIGHT_FACTOR)) {
+                light = Lighting.fromAttachments((Float)attachments.get(AttachmentType.LIGHT_FACTOR), (Vector4f)attachments.get(AttachmentType.LIGHT_VECTOR));
             }
 
-            if (texture == null) {
-                return new ColorMesh(vertices.toArray(new Vector4f[0]), normals.toArray(new Vector4f[0]), idxArr, attachments, color);
+            if (texture == null && nTexCoords == 0) {
+                return new ColorMesh(posArr, normArr, idxArr, light, color);
             } else {
-                return new TextureMesh(vertices.toArray(new Vector4f[0]), normals.toArray(new Vector4f[0]), idxArr, attachments, texture, texCoords.toArray(new Vector2f[0]));
+                return new TextureMesh(posArr, normArr, idxArr, light, texture, Arrays.copyOf(texCoords, nTexCoords));
             }
         }
     }
 
-    private static class ColorMesh extends Mesh<Void> {
-        final int color;
+    private static class ColorMesh extends Mesh {
+        final int color, premultipliedColor;
 
-        ColorMesh(Vector4f[] vertices, Vector4f[] normals, int[] indices, Map<AttachmentType, Object> attachments, int color) {
-            super(vertices, normals, indices, attachments);
+        ColorMesh(float[] positions, float[] normals, int[] indices, Lighting lighting, int color) {
+            super(positions, normals, indices, lighting);
             this.color = color;
+            this.premultipliedColor = PackedColor.premultiply(color);
+        }
+
+        @Override
+        public Mesh withLighting(Lighting lighting) {
+            return new ColorMesh(positions, normals, indices, lighting, color);
+        }
+
+        @Override
+        Mesh withTriangleData(float[] normals, int[] indices) {
+            return new ColorMesh(positions, normals, indices, lighting, color);
+        }
+
+        @Override
+        public Texture.Opacity getOpacity(int triangle) {
+            int a = color >>> 24;
+            return a == 0 ? Texture.Opacity.TRANSPARENT : a == 255 ? Texture.Opacity.OPAQUE : Texture.Opacity.MIXED;
+        }
+
+        @Override
+        int sampleARGB(float b0, float b1, float b2, int i0, int i1, int i2) {
+            return color;
         }
 
         @Override
-        public Void extra(int idx) {
-            return null;
+        public void shade(float[] attributes, float[] b0, float[] b1, float[] b2, int[] out, int n) {
+            int c = attributes[ATTR_PREMULTIPLIED] != 0 ? premultipliedColor : color;
+            Arrays.fill(out, 0, n, PackedColor.light(c, (int)attributes[ATTR_LIGHT]));
         }
 
         @Override
-        public void sample(float b0, float b1, float b2, Vector4f normal, Void u1, Void u2, Void u3, Vector4f outColor) {
+        public void sample(float b0, float b1, float b2, Vector4f normal, int i0, int i1, int i2, Vector4f outColor) {
             applyLighting(outColor.fromARGB(color), normal);
         }
     }
 
-    private static class TextureMesh extends Mesh<Vector2f> {
+    private static class TextureMesh extends Mesh {
+        private static final float TEXEL_EPSILON = 1e-3f;
+
         final Texture texture;
-        final Vector2f[] texCoords;
+        final float[] texCoords; // u, v per vertex
 
-        TextureMesh(Vector4f[] vertices, Vector4f[] normals, int[] indices, Map<AttachmentType, Object> attachments, Texture tex, Vector2f[] texCoords) {
-            super(vertices, normals, indices, attachments);
+        TextureMesh(float[] positions, float[] normals, int[] indices, Lighting lighting, Texture tex, float[] texCoords) {
+            super(positions, normals, indices, lighting);
             this.texture = tex;
             this.texCoords = texCoords;
         }
 
         @Override
-        public Vector2f extra(int idx) {
-            return texCoords[idx];
+        public Mesh withTexture(Texture tex) {
+            return new TextureMesh(positions, normals, indices, lighting, tex, texCoords);
+        }
+
+        @Override
+        public Mesh withLighting(Lighting lighting) {
+            return new TextureMesh(positions, normals, indices, lighting, texture, texCoords);
+        }
+
+        @Override
+        Mesh withTriangleData(float[] normals, int[] indices) {
+            return new TextureMesh(positions, normals, indices, lighting, texture, texCoords);
+        }
+
+        @Override
+        public Texture.Opacity getOpacity(int triangle) {
+            if (texture == null) {
+                throw new IllegalStateException("mesh has no texture");
+            }
+
+            float uMin = Float.POSITIVE_INFINITY, vMin = Float.POSITIVE_INFINITY;
+            float uMax = Float.NEGATIVE_INFINITY, vMax = Float.NEGATIVE_INFINITY;
+
+            for (int v = 0; v < 3; ++v) {
+                int idx = vertexIndex(triangle, v);
+                float u = texCoords[idx * 2], tv = texCoords[idx * 2 + 1];
+
+                uMin = Math.min(uMin, u);
+                uMax = Math.max(uMax, u);
+                vMin = Math.min(vMin, tv);
+                vMax = Math.max(vMax, tv);
+            }
+
+            int w = texture.width, h = texture.height;
+
+            // texels whose edges the bounding box only touches (give or take rounding error) are not part of it
+            int x0 = clampTexel((int)Math.floor(uMin * w + TEXEL_EPSILON), w);
+            int x1 = clampTexel((int)Math.ceil(uMax * w - TEXEL_EPSILON), w);
+            int y0 = clampTexel((int)Math.floor((1 - vMax) * h + TEXEL_EPSILON), h);
+            int y1 = clampTexel((int)Math.ceil((1 - vMin) * h - TEXEL_EPSILON), h);
+
+            // a triangle which is a line in texture space still samples one row or column
+            if (x1 <= x0) x1 = Math.min(x0 + 1, w);
+            if (y1 <= y0) y1 = Math.min(y0 + 1, h);
+            if (x0 == w) x0 = w - 1;
+            if (y0 == h) y0 = h - 1;
+
+            return texture.getOpacity(x0, y0, x1 - x0, y1 - y0);
+        }
+
+        private static int clampTexel(int t, int size) {
+            return t < 0 ? 0 : Math.min(t, size);
+        }
+
+        @Override
+        int sampleARGB(float b0, float b1, float b2, int i0, int i1, int i2) {
+            float[] tc = texCoords;
+            float texX = b0 * tc[i0 * 2] + b1 * tc[i1 * 2] + b2 * tc[i2 * 2];
+            float texY = b0 * tc[i0 * 2 + 1] + b1 * tc[i1 * 2 + 1] + b2 * tc[i2 * 2 + 1];
+
+            return texture.sample(texX, texY);
+        }
+
+        @Override
+        public void setup(int i0, int i1, int i2, Vector4f normal, BlendMode blendMode, float[] attributes) {
+            super.setup(i0, i1, i2, normal, blendMode, attributes);
+
+            float[] tc = texCoords;
+            attributes[2] = tc[i0 * 2];
+            attributes[3] = tc[i0 * 2 + 1];
+            attributes[4] = tc[i1 * 2];
+            attributes[5] = tc[i1 * 2 + 1];
+            attributes[6] = tc[i2 * 2];
+            attributes[7] = tc[i2 * 2 + 1];
         }
 
         @Override
-        public void sample(float b0, float b1, float b2, Vector4f normal, Vector2f tc1, Vector2f tc2, Vector2f tc3, Vector4f color) {
-            float texX = b0 * tc1.x + b1 * tc2.x + b2 * tc3.x;
-            float texY = b0 * tc1.y + b1 * tc2.y + b2 * tc3.y;
+        public void shade(float[] attributes, float[] b0, float[] b1, float[] b2, int[] out, int n) {
+            int light = (int)attributes[ATTR_LIGHT];
+            float u0 = attributes[2], v0 = attributes[3];
+            float u1 = attributes[4], v1 = attributes[5];
+            float u2 = attributes[6], v2 = attributes[7];
+            Texture tex = texture;
+
+            if (attributes[ATTR_PREMULTIPLIED] != 0) {
+                for (int i = 0; i < n; ++i) {
+                    float texX = b0[i] * u0 + b1[i] * u1 + b2[i] * u2;
+                    float texY = b0[i] * v0 + b1[i] * v1 + b2[i] * v2;
+
+                    out[i] = PackedColor.light(tex.samplePremultiplied(texX, texY), light);
+                }
+            } else {
+                for (int i = 0; i < n; ++i) {
+                    float texX = b0[i] * u0 + b1[i] * u1 + b2[i] * u2;
+                    float texY = b0[i] * v0 + b1[i] * v1 + b2[i] * v2;
 
-            int texiX = (int)Math.min(texture.width-1, Math.max(0, Math.floor(texX * texture.width)));
-            int texiY = (int)Math.min(texture.height-1, Math.max(0, Math.floor((1f - texY) * texture.height)));
+                    out[i] = PackedColor.light(tex.sample(texX, texY), light);
+                }
+            }
+        }
 
-            applyLighting(color.fromARGB(texture.image.getRGB(texiX, texiY)), normal);
+        @Override
+        public void sample(float b0, float b1, float b2, Vector4f normal, int i0, int i1, int i2, Vector4f color) {
+            applyLighting(color.fromARGB(sampleARGB(b0, b1, b2, i0, i1, i2)), normal);
         }
     }
 
+    /**
+     * Untyped settings for a mesh. The lighting attachments are converted to a {@link Lighting} when the mesh is built.
+     */
     public enum AttachmentType {
-        LIGHT_FACTOR, // float
-        LIGHT_VECTOR  // Vector4f
+        LIGHT_FACTOR, // float, the intensity of the light (1 minus the ambient level)
+        LIGHT_VECTOR  // Vector4f, the direction towards the light. needed if LIGHT_FACTOR is set
     }
 }
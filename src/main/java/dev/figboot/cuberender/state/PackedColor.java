@@ -0,0 +1,68 @@
+package dev.figboot.cuberender.state;
+
+// 8-bit fixed-point arithmetic on packed ARGB colors. premultiplied colors have their red, green and blue scaled by alpha
+final class PackedColor {
+    private PackedColor() { }
+
+    // x / 255, rounded to nearest, for 0 <= x <= 255 * 255
+    static int div255(int x) {
+        x += 128;
+        return (x + (x >>> 8)) >>> 8;
+    }
+
+    static int premultiply(int argb) {
+        int a = argb >>> 24;
+        if (a == 255) return argb;
+
+        return (argb & 0xFF000000)
+                | (div255(((argb >>> 16) & 0xFF) * a) << 16)
+                | (div255(((argb >>> 8) & 0xFF) * a) << 8)
+                | div255((argb & 0xFF) * a);
+    }
+
+    // one premultiplied channel c with alpha a to straight. 0 when a is 0 (the division gives NaN, which casts to 0)
+    static int unpremultiply(int c, int a) {
+        return Math.min(255, (int)(c * 255 / (float)a + 0.5f));
+    }
+
+    // the fixed-point light factor (out of 256) of a lighting factor between 0 and 1
+    static int lightFactor(float light) {
+        return (int)(light * 256 + 0.5f);
+    }
+
+    // scales red, green and blue by light / 256, leaving alpha alone
+    static int light(int argb, int light) {
+        if (light == 256) return argb;
+
+        int rb = (((argb & 0x00FF00FF) * light + 0x00800080) >>> 8) & 0x00FF00FF;
+        int g = (((argb & 0x0000FF00) * light + 0x00008000) >>> 8) & 0x0000FF00;
+        return (argb & 0xFF000000) | rb | g;
+    }
+
+    /*
+     * src is premultiplied and dst is straight, like everything passed to BlendMode.IntBlendFunction. this does the
+     * same as BlendMode.BLEND_OVER: out = src + dst * (1 - src alpha), all premultiplied, then converted back to
+     * straight. must stay operation for operation the same as VectorSpanBlender
+     */
+    static int blendOver(int src, int dst) {
+        int sa = src >>> 24, da = dst >>> 24;
+
+        if (da == 255) {
+            // the usual case, over something opaque: the result is opaque too, so nothing needs dividing
+            int inv = 255 - sa;
+            return 0xFF000000
+                    | ((((src >>> 16) & 0xFF) + div255(((dst >>> 16) & 0xFF) * inv)) << 16)
+                    | ((((src >>> 8) & 0xFF) + div255(((dst >>> 8) & 0xFF) * inv)) << 8)
+                    | ((src & 0xFF) + div255((dst & 0xFF) * inv));
+        }
+
+        // the dst alpha that shows through, which is also how much of the dst color shows through
+        int f = div255(da * (255 - sa));
+        int oa = sa + f;
+
+        return (oa << 24)
+                | (unpremultiply(((src >>> 16) & 0xFF) + div255(((dst >>> 16) & 0xFF) * f), oa) << 16)
+                | (unpremultiply(((src >>> 8) & 0xFF) + div255(((dst >>> 8) & 0xFF) * f), oa) << 8)
+                | unpremultiply((src & 0xFF) + div255((dst & 0xFF) * f), oa);
+    }
+}
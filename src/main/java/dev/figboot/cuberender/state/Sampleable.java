@@ -2,8 +2,7 @@ package dev.figboot.cuberender.state;
 
 import dev.figboot.cuberender.math.Vector4f;
 
-public interface Sampleable<T> {
-    T extra(int idx);
-
-    void sample(float b0, float b1, float b2, Vector4f normal, T e1, T e2, T e3, Vector4f outColor);
+public interface Sampleable {
+    // i0, i1 and i2 are the indices of the triangle's vertices, b0, b1 and b2 are their barycentric weights
+    void sample(float b0, float b1, float b2, Vector4f normal, int i0, int i1, int i2, Vector4f outColor);
 }
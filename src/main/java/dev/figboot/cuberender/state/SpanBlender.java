@@ -0,0 +1,50 @@
+package dev.figboot.cuberender.state;
+
+/**
+ * Blends runs of shaded pixels into a framebuffer at once. This is the scalar implementation, which gives exactly the
+ * same results as {@link BlendMode#BLEND_OVER}'s int function does one pixel at a time. On Java 17 or newer, with the
+ * {@code jdk.incubator.vector} module enabled ({@code --add-modules jdk.incubator.vector}), a jar built with the
+ * {@code vector} profile uses a SIMD implementation instead. Setting the {@code cuberender.vector} system property to
+ * {@code false} always uses this one.
+ */
+class SpanBlender {
+    static final SpanBlender INSTANCE = load();
+
+    private static SpanBlender load() {
+        if (!Boolean.parseBoolean(System.getProperty("cuberender.vector", "true"))) {
+            return new SpanBlender();
+        }
+
+        try {
+            // only exists in META-INF/versions/17 of the multi-release jar
+            return (SpanBlender)Class.forName("dev.figboot.cuberender.state.VectorSpanBlender").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            return new SpanBlender();
+        }
+    }
+
+    SpanBlender() { }
+
+    /**
+     * Blends n colors over dst[off] to dst[off + n - 1] with a blend mode's int function.
+     * @param src the colors as ARGB, premultiplied if {@link BlendMode#isPremultiplied()} is true for the mode
+     */
+    void blend(BlendMode mode, int[] src, int[] dst, int off, int n) {
+        if (mode == BlendMode.BLEND_OVER) {
+            blendOver(src, dst, off, n);
+            return;
+        }
+
+        BlendMode.IntBlendFunction function = mode.getIntFunction();
+
+        for (int i = 0; i < n; ++i) {
+            dst[off + i] = function.blend(src[i], dst[off + i]);
+        }
+    }
+
+    void blendOver(int[] src, int[] dst, int off, int n) {
+        for (int i = 0; i < n; ++i) {
+            dst[off + i] = PackedColor.blendOver(src[i], dst[off + i]);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package dev.figboot.cuberender.state;
+
+import dev.figboot.cuberender.math.Vector4f;
+
+/**
+ * Shades whole runs of pixels of a triangle at once. A {@link Framebuffer} prefers this over
+ * {@link Sampleable#sample(float, float, float, Vector4f, int, int, int, Vector4f)} for anything which implements both,
+ * such as every {@link Mesh}, so that the rasterizer makes one call per run of pixels instead of one per pixel.
+ * <p>Triangles may be shaded on several threads at once (see {@link Framebuffer#setTileExecutor}), so implementations
+ * should not keep per-triangle state in fields. Anything a triangle needs goes in its attribute array instead.</p>
+ */
+public interface SpanShader {
+    /**
+     * The length of the attribute array passed to {@link SpanShader#setup(int, int, int, Vector4f, BlendMode, float[])}.
+     */
+    int MAX_ATTRIBUTES = 16;
+
+    /**
+     * Called once per triangle, before any of its pixels are shaded.
+     * @param i0 the index of the triangle's first vertex
+     * @param i1 the index of the triangle's second vertex
+     * @param i2 the index of the triangle's third vertex
+     * @param normal the normal of the triangle
+     * @param blendMode the blend mode the triangle is drawn with, which decides whether its colors are premultiplied
+     * @param attributes where to store anything the triangle's pixels need, such as the attributes of its vertices
+     */
+    void setup(int i0, int i1, int i2, Vector4f normal, BlendMode blendMode, float[] attributes);
+
+    /**
+     * Shades pixels of a triangle. Pixel i has the barycentric weights b0[i], b1[i] and b2[i] (already corrected for
+     * perspective).
+     * @param attributes the array filled in by {@link SpanShader#setup(int, int, int, Vector4f, BlendMode, float[])}
+     * @param out receives the lit color of each pixel as ARGB, premultiplied if {@link BlendMode#isPremultiplied()}
+     *            is true for the triangle's blend mode
+     * @param n the number of pixels
+     */
+    void shade(float[] attributes, float[] b0, float[] b1, float[] b2, int[] out, int n);
+}
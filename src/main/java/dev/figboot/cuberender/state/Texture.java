@@ -1,19 +1,166 @@
 package dev.figboot.cuberender.state;
 
-import java.awt.image.BufferedImage;
+import java.awt.image.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Texture {
     public final BufferedImage image;
     public final transient int width;
     public final transient int height;
 
+    /**
+     * A 64-bit hash of the texture's size and pixels. Textures with the same contents have the same hash.
+     */
+    public final transient long contentHash;
+
+    // packed ARGB, row-major, extracted once so sampling never goes through the image's ColorModel
+    final int[] texels;
+
+    // the same texels premultiplied by alpha, which is what meshes blend with when they blend by alpha
+    final int[] premultipliedTexels;
+
+    // results of getOpacity, keyed by the region's x, y, width and height (16 bits each)
+    private final transient Map<Long, Opacity> opacityCache = new ConcurrentHashMap<>();
+
     public Texture(BufferedImage image) {
         this.image = image;
         this.width = image.getWidth();
         this.height = image.getHeight();
+        this.texels = image.getRGB(0, 0, width, height, null, 0, width);
+        this.premultipliedTexels = premultiply(texels);
+        this.contentHash = hash(width, height, texels);
+    }
+
+    /**
+     * Creates a texture from packed ARGB pixels without copying them. The array becomes the texture's texels and backs
+     * its {@link Texture#image}, so neither may be modified afterwards.
+     * @param width the width of the texture
+     * @param height the height of the texture
+     * @param texels the pixels, row-major, starting with the top row
+     */
+    public Texture(int width, int height, int[] texels) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("size must be positive");
+        }
+
+        if (texels.length != width * height) {
+            throw new IllegalArgumentException("texels must hold exactly width * height pixels");
+        }
+
+        DirectColorModel cm = (DirectColorModel)ColorModel.getRGBdefault();
+        WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(texels, texels.length), width, height, width, cm.getMasks(), null);
+
+        this.image = new BufferedImage(cm, raster, false, null);
+        this.width = width;
+        this.height = height;
+        this.texels = texels;
+        this.premultipliedTexels = premultiply(texels);
+        this.contentHash = hash(width, height, texels);
+    }
+
+    private static int[] premultiply(int[] texels) {
+        int[] out = new int[texels.length];
+
+        for (int i = 0; i < texels.length; ++i) {
+            out[i] = PackedColor.premultiply(texels[i]);
+        }
+
+        return out;
+    }
+
+    private static long hash(int width, int height, int[] texels) {
+        long h = ((long)width << 32 | height) * 0x9E3779B97F4A7C15L;
+
+        for (int t : texels) {
+            h = Long.rotateLeft(h ^ (t * 0xC2B2AE3D27D4EB4FL), 31) * 0x9E3779B97F4A7C15L;
+        }
+
+        // final avalanche (from SplitMix64) so every texel affects every bit
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 31);
+    }
+
+    /**
+     * Works out whether a region of the texture is fully transparent, fully opaque or neither. Results are cached, so
+     * this is cheap to call again for the same region.
+     * @param x the left edge of the region
+     * @param y the top edge of the region
+     * @param w the width of the region
+     * @param h the height of the region
+     * @return the opacity of the region
+     */
+    public Opacity getOpacity(int x, int y, int w, int h) {
+        if (x < 0 || y < 0 || w <= 0 || h <= 0 || x + w > width || y + h > height) {
+            throw new IllegalArgumentException("region is outside of the texture");
+        }
+
+        long key = (long)x << 48 | (long)y << 32 | (long)w << 16 | h;
+        return opacityCache.computeIfAbsent(key, k -> analyzeOpacity(x, y, w, h));
+    }
+
+    private Opacity analyzeOpacity(int x, int y, int w, int h) {
+        // the AND of every alpha is 255 only if they are all 255, and the OR is 0 only if they are all 0
+        int and = 0xFF, or = 0;
+
+        for (int row = y; row < y + h; ++row) {
+            for (int i = row * width + x, max = i + w; i < max; ++i) {
+                int a = texels[i] >>> 24;
+                and &= a;
+                or |= a;
+            }
+
+            if (or != 0 && and != 0xFF) return Opacity.MIXED;
+        }
+
+        return or == 0 ? Opacity.TRANSPARENT : and == 0xFF ? Opacity.OPAQUE : Opacity.MIXED;
     }
 
     public float calcAspect() {
         return (float)width / height;
     }
+
+    int sample(float u, float v) {
+        return texels[texelIndex(u, v)];
+    }
+
+    int samplePremultiplied(float u, float v) {
+        return premultipliedTexels[texelIndex(u, v)];
+    }
+
+    // u and v are in texture space (v = 0 is the bottom of the image), coordinates outside of the texture are clamped
+    private int texelIndex(float u, float v) {
+        // casting truncates toward zero instead of flooring, but anything that rounds differently is clamped to 0 anyway
+        int x = (int)(u * width);
+        int y = (int)((1f - v) * height);
+
+        if (x < 0) x = 0;
+        else if (x >= width) x = width - 1;
+
+        if (y < 0) y = 0;
+        else if (y >= height) y = height - 1;
+
+        return y * width + x;
+    }
+
+    /**
+     * The opacity of a region of a texture, see {@link Texture#getOpacity(int, int, int, int)}.
+     */
+    public enum Opacity {
+        /**
+         * Every texel has an alpha of 0, so drawing the region changes nothing.
+         */
+        TRANSPARENT,
+
+        /**
+         * Every texel has an alpha of 255, so the region can be drawn without blending.
+         */
+        OPAQUE,
+
+        /**
+         * The region has both transparent and opaque texels, or texels which are partly transparent.
+         */
+        MIXED
+    }
 }
@@ -2,7 +2,9 @@ package dev.figboot.cuberender.test;
 
 import dev.figboot.cuberender.api.PlayerModel;
 import dev.figboot.cuberender.api.SkinUtil;
+import dev.figboot.cuberender.state.AntiAliasMode;
 import dev.figboot.cuberender.state.Framebuffer;
+import dev.figboot.cuberender.state.Texture;
 import lombok.Getter;
 
 import javax.imageio.ImageIO;
@@ -10,7 +12,6 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
-import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -24,6 +25,13 @@ class GraphicsPanel extends JPanel {
 
     @Getter private final PlayerModel model;
 
+    // whether the skin was detected as slim, which the control window starts its model type buttons at
+    @Getter private final boolean slimSkin;
+
+    private boolean referenceRasterizer;
+    private boolean lazyClear;
+    private AntiAliasMode antiAliasMode = AntiAliasMode.NONE;
+
     public GraphicsPanel() {
         addComponentListener(new ComponentAdapter() {
             @Override
@@ -32,29 +40,41 @@ class GraphicsPanel extends JPanel {
             }
         });
 
-        BufferedImage bi;
-        try (InputStream is = getClass().getResourceAsStream("/skinSlim.png")) {
-            bi = ImageIO.read(is);
+        SkinUtil.NormalizedSkin skin;
+        Texture cape;
+        try (InputStream skinIs = getClass().getResourceAsStream("/skinSlim.png");
+             InputStream capeIs = getClass().getResourceAsStream("/cape.png")) {
+            skin = SkinUtil.normalizeSkin(ImageIO.read(skinIs));
+            cape = SkinUtil.normalizeCape(ImageIO.read(capeIs));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
 
-        BufferedImage capeBI;
-        try (InputStream is = getClass().getResourceAsStream("/cape.png")) {
-            capeBI = ImageIO.read(is);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        model = new PlayerModel(skin.getTexture(), cape);
+        slimSkin = skin.isSlim();
+    }
 
-        if (bi.getHeight() == 32) {
-            bi = SkinUtil.convertToModernSkin(bi, null);
-        }
+    private void handleResize(int width, int height) {
+        framebuffer = new Framebuffer(width, height, antiAliasMode);
+        framebuffer.setReferenceRasterizer(referenceRasterizer);
+        framebuffer.setLazyClear(lazyClear);
+    }
 
-        model = new PlayerModel(bi, capeBI);
+    void setReferenceRasterizer(boolean reference) {
+        this.referenceRasterizer = reference;
+        if (framebuffer != null) framebuffer.setReferenceRasterizer(reference);
     }
 
-    private void handleResize(int width, int height) {
-        framebuffer = new Framebuffer(width, height);
+    void setLazyClear(boolean lazyClear) {
+        this.lazyClear = lazyClear;
+        if (framebuffer != null) framebuffer.setLazyClear(lazyClear);
+    }
+
+    void setAntiAliasMode(AntiAliasMode mode) {
+        if (mode == antiAliasMode) return;
+
+        this.antiAliasMode = mode;
+        if (framebuffer != null) handleResize(getWidth(), getHeight());
     }
 
     @Override
@@ -79,7 +99,7 @@ class GraphicsPanel extends JPanel {
         g.drawString(String.format("clr %.02fms", (t1 - start) / 1000000.), 10, y += 12);
         g.drawString(String.format("msh %.02fms", (t2 - t1) / 1000000.), 10, y += 12);
         g.drawString(getAvgClr(), 10, y += 12);
-        g.drawString(String.format("%dx%d", framebuffer.getWidth(), framebuffer.getHeight()), 10, y += 12);
+        g.drawString(String.format("%dx%d %s", framebuffer.getWidth(), framebuffer.getHeight(), framebuffer.getAntiAliasMode()), 10, y += 12);
     }
 
     private void addTiming(long clr, long msh) {
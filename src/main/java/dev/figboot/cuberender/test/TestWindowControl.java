@@ -1,6 +1,7 @@
 package dev.figboot.cuberender.test;
 
 import dev.figboot.cuberender.api.PlayerModel;
+import dev.figboot.cuberender.state.AntiAliasMode;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 
@@ -29,6 +30,11 @@ class TestWindowControl extends JFrame {
     private final JSlider sldXRot;
     private final JSlider sldHeadPitch;
 
+    private final JCheckBox cbxReferenceRasterizer;
+    private final JCheckBox cbxLazyClear;
+    private final JCheckBox cbxPerspective;
+    private final JComboBox<AntiAliasMode> cmbAntiAlias;
+
     private final EnumMap<OverlayPart, JCheckBox> cbxOverlayParts = new EnumMap<>(OverlayPart.class);
 
     TestWindowControl(GraphicsPanel gpanel) {
@@ -76,7 +82,8 @@ class TestWindowControl extends JFrame {
         bgModelType = new ButtonGroup();
         radModelNormal = new JRadioButton("Normal");
         radModelSlim = new JRadioButton("Slim");
-        radModelNormal.setSelected(true);
+        radModelNormal.setSelected(!gpanel.isSlimSkin());
+        radModelSlim.setSelected(gpanel.isSlimSkin());
 
         radModelNormal.addActionListener(this::handleAction);
         radModelSlim.addActionListener(this::handleAction);
@@ -87,6 +94,22 @@ class TestWindowControl extends JFrame {
         bgModelType.add(radModelNormal);
         bgModelType.add(radModelSlim);
 
+        cbxReferenceRasterizer = new JCheckBox("Reference rasterizer");
+        cbxReferenceRasterizer.addActionListener(this::handleAction);
+        modelPanel.add(cbxReferenceRasterizer);
+
+        cbxLazyClear = new JCheckBox("Lazy clear");
+        cbxLazyClear.addActionListener(this::handleAction);
+        modelPanel.add(cbxLazyClear);
+
+        cbxPerspective = new JCheckBox("Perspective");
+        cbxPerspective.addActionListener(this::handleAction);
+        modelPanel.add(cbxPerspective);
+
+        cmbAntiAlias = new JComboBox<>(AntiAliasMode.values());
+        cmbAntiAlias.addActionListener(this::handleAction);
+        modelPanel.add(cmbAntiAlias);
+
         JPanel limbControlPanel = new JPanel();
         limbControlPanel.setLayout(new BoxLayout(limbControlPanel, BoxLayout.Y_AXIS));
         limbControlPanel.setBorder(new LineBorder(Color.BLACK, 1));
@@ -147,9 +170,7 @@ class TestWindowControl extends JFrame {
         graphicsPanel.addComponentListener(new ComponentAdapter() {
             @Override
             public void componentResized(ComponentEvent e) {
-                float aspect = (float)graphicsPanel.getWidth() / graphicsPanel.getHeight();
-                graphicsPanel.getModel().setWorldScale(0.75f / aspect, 0.75f, 0.75f);
-                graphicsPanel.getModel().updateTransforms();
+                updateWorldScale();
                 graphicsPanel.repaint();
             }
         });
@@ -157,11 +178,35 @@ class TestWindowControl extends JFrame {
         updateGraphics(true, true);
     }
 
+    private void updateWorldScale() {
+        PlayerModel model = graphicsPanel.getModel();
+
+        // the perspective projection already accounts for the aspect ratio
+        if (cbxPerspective.isSelected()) {
+            model.setWorldScale(0.75f);
+        } else {
+            float aspect = (float)graphicsPanel.getWidth() / graphicsPanel.getHeight();
+            model.setWorldScale(0.75f / aspect, 0.75f, 0.75f);
+        }
+
+        model.updateTransforms();
+    }
+
     private void updateGraphics(boolean slider, boolean overlay) {
         PlayerModel model = graphicsPanel.getModel();
 
         model.setTranslucentModel(radOverlayTranslucent.isSelected());
         model.setNormalModel(radModelNormal.isSelected());
+        graphicsPanel.setReferenceRasterizer(cbxReferenceRasterizer.isSelected());
+        graphicsPanel.setLazyClear(cbxLazyClear.isSelected());
+        graphicsPanel.setAntiAliasMode((AntiAliasMode)cmbAntiAlias.getSelectedItem());
+
+        if (cbxPerspective.isSelected()) {
+            model.setPerspective((float)Math.toRadians(45), 0.05f, 10f);
+        } else {
+            model.setOrthographic();
+        }
+        updateWorldScale();
 
         if (slider) {
             model.setWalkAngle((float)Math.toRadians(sldWalkAngle.getValue()));
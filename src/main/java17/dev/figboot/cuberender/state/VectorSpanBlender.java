@@ -0,0 +1,65 @@
+package dev.figboot.cuberender.state;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * A {@link SpanBlender} which blends as many pixels at once as the CPU has int lanes. Each lane does the same
+ * operations as {@link PackedColor#blendOver(int, int)} (without its shortcut for opaque destinations, which gives the
+ * same result anyway), so the results are identical.
+ */
+class VectorSpanBlender extends SpanBlender {
+    private static final VectorSpecies<Integer> I = IntVector.SPECIES_PREFERRED;
+
+    VectorSpanBlender() {
+        if (FloatVector.SPECIES_PREFERRED.length() != I.length()) {
+            // never happens (both are 32 bits wide), but the lanes of the two must line up
+            throw new UnsupportedOperationException("float and int species differ in length");
+        }
+    }
+
+    @Override
+    void blendOver(int[] src, int[] dst, int off, int n) {
+        int i = 0;
+
+        for (int max = I.loopBound(n); i < max; i += I.length()) {
+            IntVector s = IntVector.fromArray(I, src, i);
+            IntVector d = IntVector.fromArray(I, dst, off + i);
+
+            IntVector sa = s.lanewise(VectorOperators.LSHR, 24);
+            IntVector f = div255(d.lanewise(VectorOperators.LSHR, 24).mul(sa.neg().add(255)));
+            IntVector oa = sa.add(f);
+
+            IntVector out = oa.lanewise(VectorOperators.LSHL, 24)
+                    .or(channel(s, d, 16, f, oa).lanewise(VectorOperators.LSHL, 16))
+                    .or(channel(s, d, 8, f, oa).lanewise(VectorOperators.LSHL, 8))
+                    .or(channel(s, d, 0, f, oa));
+
+            out.intoArray(dst, off + i);
+        }
+
+        for (; i < n; ++i) {
+            dst[off + i] = PackedColor.blendOver(src[i], dst[off + i]);
+        }
+    }
+
+    // one straight output channel: the src channel plus f of the dst channel, divided by the output alpha
+    private static IntVector channel(IntVector s, IntVector d, int shift, IntVector f, IntVector oa) {
+        IntVector sc = s.lanewise(VectorOperators.LSHR, shift).and(0xFF);
+        IntVector dc = d.lanewise(VectorOperators.LSHR, shift).and(0xFF);
+        IntVector c = sc.add(div255(dc.mul(f)));
+
+        // PackedColor.unpremultiply
+        FloatVector q = ((FloatVector)c.mul(255).convert(VectorOperators.I2F, 0))
+                .div((FloatVector)oa.convert(VectorOperators.I2F, 0))
+                .add(0.5f);
+        return ((IntVector)q.convert(VectorOperators.F2I, 0)).min(255);
+    }
+
+    private static IntVector div255(IntVector x) {
+        x = x.add(128);
+        return x.add(x.lanewise(VectorOperators.LSHR, 8)).lanewise(VectorOperators.LSHR, 8);
+    }
+}